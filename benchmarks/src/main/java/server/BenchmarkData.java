@@ -0,0 +1,128 @@
+package server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import server.util.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Data shared by the benchmarks. Databases hold top-level records "record<n>" of about 200
+ * characters each, with a nested address. Trees for key path benchmarks have one object per
+ * level holding "width" members, one of which leads to the next level.
+ */
+public final class BenchmarkData {
+    private static final int RECORD_CHARS = 200;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Write a database file of about a size to a new directory and make it the server's working
+     * directory. Must be called before the data handler is first used.
+     *
+     * @param bytes Approximate size of data file.
+     * @return Number of records in data file.
+     * @throws IOException If data file could not be written.
+     */
+    public static int useDatabase(long bytes) throws IOException {
+        Path directory = Files.createTempDirectory("jsondb-bench");
+        Path dataDirectory = Files.createDirectories(directory.resolve("src/server/data"));
+        int records = (int) Math.max(1, bytes / RECORD_CHARS);
+        try (Writer fileWriter = Files.newBufferedWriter(dataDirectory.resolve("db.json"), StandardCharsets.UTF_8);
+             var writer = new JsonWriter(fileWriter)) {
+            writer.beginObject();
+            for (int i = 0; i < records; i++) {
+                writer.name(recordKey(i));
+                writer.beginObject();
+                writer.name("name").value("Name " + i);
+                writer.name("age").value(i % 100);
+                writer.name("address").beginObject();
+                writer.name("city").value("City " + i % 1000);
+                writer.name("street").value("Street " + i);
+                writer.endObject();
+                writer.name("notes").value("x".repeat(90));
+                writer.endObject();
+            }
+            writer.endObject();
+        }
+        System.setProperty("user.dir", directory.toString());
+        return records;
+    }
+
+    /**
+     * Get top-level key of a record.
+     *
+     * @param record Record number.
+     * @return Key.
+     */
+    public static String recordKey(int record) {
+        return "record" + record;
+    }
+
+    /**
+     * Build a tree of objects.
+     *
+     * @param depth Number of levels.
+     * @param width Members of the object at each level.
+     * @return Root object.
+     */
+    public static JsonObject tree(int depth, int width) {
+        JsonObject root = new JsonObject();
+        JsonObject level = root;
+        for (int i = 0; i < depth; i++) {
+            for (int member = 0; member < width; member++) {
+                level.addProperty("k" + member, member);
+            }
+            if (i < depth - 1) {
+                JsonObject next = new JsonObject();
+                level.add(pathKey(width), next);
+                level = next;
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Get the key path from the root of a tree to a member of its deepest object.
+     *
+     * @param depth Number of levels.
+     * @param width Members of the object at each level.
+     * @return Key path.
+     */
+    public static String[] path(int depth, int width) {
+        String[] keys = new String[depth];
+        for (int i = 0; i < depth; i++) {
+            keys[i] = pathKey(width);
+        }
+        return keys;
+    }
+
+    /**
+     * Create a server logger writing to a new temporary directory.
+     *
+     * @param name Name of logging class.
+     * @return Logger.
+     * @throws IOException If log directory could not be created.
+     */
+    public static Logger logger(String name) throws IOException {
+        return new Logger(name, Files.createTempDirectory("jsondb-bench-log").resolve("server.log").toString());
+    }
+
+    /**
+     * Discard console output, so server request logging does not flood benchmark output.
+     */
+    public static void silenceConsole() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    private static String pathKey(int width) {
+        return "k" + width / 2;
+    }
+}
@@ -0,0 +1,127 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.data.DataHandler;
+import server.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Round trip of a get through the blocking listener over loopback: with a new connection per
+ * request as the command line client sends it, and over one framed connection per thread.
+ * Server console output is discarded so it does not flood the benchmark output.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djsondb.flushPolicy=shutdown", "-Djsondb.logLevel=error"})
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    private static final String REQUEST = "{\"type\":\"get\",\"key\":[\"record1\",\"address\",\"city\"]}";
+
+    private Listener listener;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        BenchmarkData.useDatabase(1024 * 1024);
+        BenchmarkData.silenceConsole();
+        try (var probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        Logger logger = BenchmarkData.logger(LoopbackBenchmark.class.getName());
+        listener = Listener.getInstance();
+        var serverThread = new Thread(() -> listener.startListening(logger, port), "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        // Wait for listener to answer requests.
+        for (int attempt = 0; ; attempt++) {
+            try {
+                connectionPerRequest();
+                break;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        listener.stopListening();
+        DataHandler.getInstance().close();
+    }
+
+    /*
+     * Persistent framed connection, per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class FramedConnection {
+        private Socket socket;
+        private DataInputStream inputStream;
+        private DataOutputStream outputStream;
+
+        @Setup(Level.Trial)
+        public void open(LoopbackBenchmark benchmark) throws IOException {
+            socket = new Socket("127.0.0.1", benchmark.port);
+            socket.setTcpNoDelay(true);
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            outputStream.write("JDB1".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        String roundTrip(String request) throws IOException {
+            byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+            outputStream.writeInt(bytes.length);
+            outputStream.write(bytes);
+            outputStream.flush();
+            byte[] response = new byte[inputStream.readInt()];
+            inputStream.readFully(response);
+            return new String(response, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public String connectionPerRequest() throws IOException {
+        try (var socket = new Socket("127.0.0.1", port);
+             var inputStream = new DataInputStream(socket.getInputStream());
+             var outputStream = new DataOutputStream(socket.getOutputStream())) {
+            outputStream.writeUTF(REQUEST);
+            return inputStream.readUTF();
+        }
+    }
+
+    @Benchmark
+    public String framedRoundTrip(FramedConnection connection) throws IOException {
+        return connection.roundTrip(REQUEST);
+    }
+}
@@ -0,0 +1,144 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing of typical requests, from a get of one key to a batch of nested sets. parseRequest is
+ * the server's streaming parse. parseTree is a reference that parses the whole request into a
+ * JsonObject first and then picks the fields out of it, as the server did before requests were
+ * streamed. Run with -prof gc to compare bytes allocated per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djsondb.flushPolicy=shutdown", "-Djsondb.logLevel=error"})
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+    @Param({"get", "nestedGet", "set", "nestedSet", "batch"})
+    private String request;
+
+    private RequestHandler requestHandler;
+    private String requestAsString;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkData.useDatabase(1024);
+        requestHandler = new RequestHandler(null, null, null);
+        String person = "{\"name\":\"Elon Musk\",\"car\":{\"model\":\"Tesla Roadster\",\"year\":\"2018\"},"
+                + "\"rocket\":{\"name\":\"Falcon 9\",\"launches\":\"87\"}}";
+        requestAsString = switch (request) {
+            case "get" -> "{\"type\":\"get\",\"key\":\"person\"}";
+            case "nestedGet" -> "{\"type\":\"get\",\"key\":[\"person\",\"rocket\",\"launches\"]}";
+            case "set" -> "{\"type\":\"set\",\"key\":\"person\",\"value\":\"Elon Musk\"}";
+            case "nestedSet" -> "{\"type\":\"set\",\"key\":\"person\",\"value\":" + person + "}";
+            case "batch" -> "{\"type\":\"batch\",\"operations\":["
+                    + "{\"type\":\"set\",\"key\":\"person1\",\"value\":" + person + "},"
+                    + "{\"type\":\"set\",\"key\":[\"person1\",\"rocket\",\"launches\"],\"value\":\"88\"},"
+                    + "{\"type\":\"get\",\"key\":[\"person1\",\"car\"]},"
+                    + "{\"type\":\"delete\",\"key\":\"person2\"}]}";
+            default -> throw new IllegalArgumentException("Unknown request " + request + ".");
+        };
+    }
+
+    @Benchmark
+    public Optional<?> parseRequest() {
+        return requestHandler.parseRequest(requestAsString);
+    }
+
+    @Benchmark
+    public Optional<?> parseTree() {
+        try {
+            JsonElement requestAsElement = JsonParser.parseString(requestAsString);
+            return requestAsElement.isJsonObject() ? treeCommand(requestAsElement.getAsJsonObject()) : Optional.empty();
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Pick command and fields out of a parsed request object.
+     *
+     * @param requestAsObject Request.
+     * @return Optional with command and fields, or empty Optional if request is not valid.
+     */
+    private static Optional<RequestHandler.CommandWithFields> treeCommand(JsonObject requestAsObject) {
+        if (!requestAsObject.has("type")) {
+            return Optional.empty();
+        }
+        RequestHandler.Command command;
+        try {
+            command = RequestHandler.Command.valueOf(requestAsObject.get("type").getAsString().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+
+        if (command == RequestHandler.Command.BATCH) {
+            if (!requestAsObject.has("operations") || !requestAsObject.get("operations").isJsonArray()) {
+                return Optional.empty();
+            }
+            List<RequestHandler.CommandWithFields> operations = new ArrayList<>();
+            for (JsonElement operation : requestAsObject.getAsJsonArray("operations")) {
+                Optional<RequestHandler.CommandWithFields> parsed = operation.isJsonObject()
+                        ? treeCommand(operation.getAsJsonObject())
+                        : Optional.empty();
+                if (parsed.isEmpty()) {
+                    return Optional.empty();
+                }
+                operations.add(parsed.get());
+            }
+            boolean atomic = requestAsObject.has("atomic") && requestAsObject.get("atomic").getAsBoolean();
+            return Optional.of(new RequestHandler.CommandWithFields(command, null, null, operations, atomic, null, null, false));
+        }
+
+        String[] keys = null;
+        if (command.inputElementsCount() >= 1) {
+            JsonElement keyAsElement = requestAsObject.get("key");
+            if (keyAsElement == null) {
+                return Optional.empty();
+            }
+            if (keyAsElement.isJsonArray()) {
+                JsonArray keyArray = keyAsElement.getAsJsonArray();
+                keys = new String[keyArray.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = keyArray.get(i).getAsString();
+                }
+            } else {
+                keys = new String[]{keyAsElement.getAsString()};
+            }
+            if (keys.length == 0) {
+                return Optional.empty();
+            }
+        }
+
+        JsonElement value = null;
+        if (command.inputElementsCount() >= 2) {
+            value = requestAsObject.get("value");
+            if (value == null) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(new RequestHandler.CommandWithFields(command, keys, value));
+    }
+}
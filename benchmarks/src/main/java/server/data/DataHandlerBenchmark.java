@@ -0,0 +1,92 @@
+package server.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BenchmarkData;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Gets and sets of nested keys in databases from 1 KB to 100 MB. Each database size runs in
+ * its own JVM, since the data handler loads its data file once. Changes are only written at
+ * shutdown, so sets measure the in-memory path. Keys cycle through every record, so lookups
+ * are not all served from the same cache lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Djsondb.flushPolicy=shutdown", "-Djsondb.logLevel=error"})
+@State(Scope.Benchmark)
+public class DataHandlerBenchmark {
+    @Param({"1024", "1048576", "104857600"})
+    private long databaseBytes;
+
+    private DataHandler dataHandler;
+    private String[][] cityKeys;
+    private String[][] ageKeys;
+    private JsonElement age;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int records = BenchmarkData.useDatabase(databaseBytes);
+        dataHandler = DataHandler.getInstance();
+        dataHandler.setLogger(BenchmarkData.logger(DataHandlerBenchmark.class.getName()));
+        cityKeys = new String[Math.min(records, 65536)][];
+        ageKeys = new String[cityKeys.length][];
+        for (int i = 0; i < cityKeys.length; i++) {
+            int record = (int) ((long) i * records / cityKeys.length);
+            cityKeys[i] = new String[]{BenchmarkData.recordKey(record), "address", "city"};
+            ageKeys[i] = new String[]{BenchmarkData.recordKey(record), "age"};
+        }
+        age = new JsonPrimitive(30);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataHandler.close();
+    }
+
+    /*
+     * Position in the key list, per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int count) {
+            int position = next;
+            next = position + 1 == count ? 0 : position + 1;
+            return position;
+        }
+    }
+
+    @Benchmark
+    public DataHandlerResult get(Cursor cursor) {
+        return dataHandler.get(cityKeys[cursor.next(cityKeys.length)]);
+    }
+
+    @Benchmark
+    public DataHandlerResult getSerialized(Cursor cursor) {
+        return dataHandler.getSerialized(cityKeys[cursor.next(cityKeys.length)]);
+    }
+
+    @Benchmark
+    public DataHandlerResult set(Cursor cursor) {
+        return dataHandler.set(ageKeys[cursor.next(ageKeys.length)], age);
+    }
+}
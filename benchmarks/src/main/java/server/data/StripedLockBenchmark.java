@@ -0,0 +1,142 @@
+package server.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+import server.BenchmarkData;
+import server.util.Settings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Throughput of sets and gets from 1, 2, 4 and all available threads, each on its own top-level
+ * keys. Keys are chosen by lock stripe, so threads never share a stripe while there are no more
+ * threads than stripes, and throughput should grow with the thread count up to the number of
+ * cores. Compare the total operations per second of the same operation across thread counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Djsondb.flushPolicy=shutdown", "-Djsondb.logLevel=error"})
+@State(Scope.Benchmark)
+public class StripedLockBenchmark {
+    private static final int DATABASE_BYTES = 1024 * 1024;
+
+    private DataHandler dataHandler;
+    private int records;
+    private PathLocks stripeLayout;
+    private JsonElement age;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        records = BenchmarkData.useDatabase(DATABASE_BYTES);
+        dataHandler = DataHandler.getInstance();
+        dataHandler.setLogger(BenchmarkData.logger(StripedLockBenchmark.class.getName()));
+
+        // Same striping as the data handler's locks.
+        stripeLayout = new PathLocks(Settings.getInt("lockStripes", 64));
+        age = new JsonPrimitive(30);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataHandler.close();
+    }
+
+    /*
+     * Keys of the records whose stripes belong to one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        private String[][] ageKeys;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(StripedLockBenchmark benchmark, ThreadParams threadParams) {
+            int stripeCount = benchmark.stripeLayout.stripeCount();
+            int threadCount = Math.min(threadParams.getThreadCount(), stripeCount);
+            int thread = threadParams.getThreadIndex() % threadCount;
+
+            // Stripes are dealt out to threads in turn.
+            List<String[]> keys = new ArrayList<>();
+            for (int record = 0; record < benchmark.records; record++) {
+                String[] recordKeys = {BenchmarkData.recordKey(record)};
+                if (benchmark.stripeLayout.stripe(recordKeys) % threadCount == thread) {
+                    keys.add(new String[]{recordKeys[0], "age"});
+                }
+            }
+            ageKeys = keys.toArray(String[][]::new);
+        }
+
+        String[] next() {
+            String[] keys = ageKeys[next];
+            next = next + 1 == ageKeys.length ? 0 : next + 1;
+            return keys;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DataHandlerResult set1Thread(ThreadKeys keys) {
+        return dataHandler.set(keys.next(), age);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public DataHandlerResult set2Threads(ThreadKeys keys) {
+        return dataHandler.set(keys.next(), age);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DataHandlerResult set4Threads(ThreadKeys keys) {
+        return dataHandler.set(keys.next(), age);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public DataHandlerResult setAllThreads(ThreadKeys keys) {
+        return dataHandler.set(keys.next(), age);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public DataHandlerResult get1Thread(ThreadKeys keys) {
+        return dataHandler.get(keys.next());
+    }
+
+    @Benchmark
+    @Threads(2)
+    public DataHandlerResult get2Threads(ThreadKeys keys) {
+        return dataHandler.get(keys.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public DataHandlerResult get4Threads(ThreadKeys keys) {
+        return dataHandler.get(keys.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public DataHandlerResult getAllThreads(ThreadKeys keys) {
+        return dataHandler.get(keys.next());
+    }
+}
@@ -0,0 +1,66 @@
+package server.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.BenchmarkData;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Key path lookups and changes on trees of various depths and widths. Removing is measured
+ * together with adding the element back, so every invocation starts from the same tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonToolsBenchmark {
+    @Param({"1", "4", "16"})
+    private int depth;
+
+    @Param({"10", "1000"})
+    private int width;
+
+    private JsonObject tree;
+    private String[] keys;
+    private JsonElement value;
+
+    @Setup
+    public void setUp() {
+        tree = BenchmarkData.tree(depth, width);
+        keys = BenchmarkData.path(depth, width);
+        value = new JsonPrimitive(42);
+    }
+
+    @Benchmark
+    public Optional<JsonElement> findElement() {
+        return JsonTools.findElement(keys, tree);
+    }
+
+    @Benchmark
+    public String updateElement() {
+        return JsonTools.updateElement(keys, value, tree);
+    }
+
+    @Benchmark
+    public String removeAndRestoreElement() {
+        String problem = JsonTools.removeElement(keys, tree);
+        JsonTools.updateElement(keys, value, tree);
+        return problem;
+    }
+}
@@ -18,6 +18,48 @@ public final class ArgsParsed {
     @Parameter(names = "-in", description = "Request input file")
     private String requestInputFile;
 
+    @Parameter(names = "-pipeline", description = "Send each line of request input file as a request over one connection")
+    private boolean pipeline;
+
+    @Parameter(names = "-async", description = "Send each line of request input file as a request over a pool of connections without waiting for responses")
+    private boolean async;
+
+    @Parameter(names = "-connections", description = "Number of connections used with -async")
+    private int connections = 4;
+
+    @Parameter(names = "-benchmark", description = "Generate load and report throughput and latencies as JSON")
+    private boolean benchmark;
+
+    @Parameter(names = "-workers", description = "Number of benchmark workers, each with one request in flight")
+    private int workers = 8;
+
+    @Parameter(names = "-duration", description = "Benchmark duration in seconds, unless -requests is given")
+    private int duration = 10;
+
+    @Parameter(names = "-requests", description = "Number of benchmark requests, instead of a duration")
+    private long requests;
+
+    @Parameter(names = "-mix", description = "Benchmark percentages of gets, sets and deletes")
+    private String mix = "80,15,5";
+
+    @Parameter(names = "-keys", description = "Number of keys the benchmark uses")
+    private int keys = 10000;
+
+    @Parameter(names = "-valueSize", description = "Characters in each value the benchmark sets")
+    private int valueSize = 100;
+
+    @Parameter(names = "-depth", description = "Nesting depth of each value the benchmark sets")
+    private int depth = 1;
+
+    @Parameter(names = "-out", description = "File to write benchmark report to, in addition to console")
+    private String outputFile;
+
+    @Parameter(names = "-host", description = "Server host")
+    private String host = "127.0.0.1";
+
+    @Parameter(names = "-port", description = "Server port")
+    private int port = 20123;
+
     public String requestType() {
         return requestType;
     }
@@ -33,4 +75,60 @@ public final class ArgsParsed {
     public String requestInputFile() {
         return requestInputFile;
     }
+
+    public boolean pipeline() {
+        return pipeline;
+    }
+
+    public boolean async() {
+        return async;
+    }
+
+    public int connections() {
+        return connections;
+    }
+
+    public boolean benchmark() {
+        return benchmark;
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    public int duration() {
+        return duration;
+    }
+
+    public long requests() {
+        return requests;
+    }
+
+    public String mix() {
+        return mix;
+    }
+
+    public int keys() {
+        return keys;
+    }
+
+    public int valueSize() {
+        return valueSize;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public String outputFile() {
+        return outputFile;
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
 }
@@ -0,0 +1,283 @@
+package client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Load generator. Workers each send one request at a time through the asynchronous sender and
+ * wait for its response, so the number of workers is the number of requests in flight. Keys are
+ * top-level keys "bench<n>" drawn uniformly from the key space. A set writes a value nested
+ * "depth" objects deep with a string leaf of the value size, a get reads that leaf and a delete
+ * removes the key. Every key is set once before the run starts, so gets find their values until
+ * deletes remove them.
+ */
+final class Benchmark {
+    /**
+     * Request types in the mix.
+     */
+    enum Operation {
+        GET,
+        SET,
+        DELETE
+    }
+
+    record Options(int workers, int connections, long durationMillis, long requests, int[] mix,
+                   int keys, int valueSize, int depth) {
+    }
+
+    private final Options options;
+    private final Sender sender;
+
+    /**
+     * Create benchmark.
+     *
+     * @param options Load to generate.
+     * @param sender  Sender to send requests with.
+     */
+    Benchmark(Options options, Sender sender) {
+        this.options = options;
+        this.sender = sender;
+    }
+
+    /**
+     * Parse a read, write and delete mix.
+     *
+     * @param mix Comma separated percentages of gets, sets and deletes, such as "80,15,5".
+     * @return Weights of GET, SET and DELETE.
+     * @throws IllegalArgumentException If mix does not have three non-negative weights with a positive sum.
+     */
+    static int[] parseMix(String mix) {
+        String[] parts = mix.split(",");
+        if (parts.length != Operation.values().length) {
+            throw new IllegalArgumentException("Mix must have a weight for gets, sets and deletes.");
+        }
+        int[] weights = new int[parts.length];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+            if (weights[i] < 0) {
+                throw new IllegalArgumentException("Mix weights must not be negative.");
+            }
+            total += weights[i];
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("Mix weights must not all be zero.");
+        }
+        return weights;
+    }
+
+    /**
+     * Fill key space, then generate load until the request count or duration is reached.
+     *
+     * @return Report with options, throughput, and latencies overall and by request type in microseconds.
+     */
+    JsonObject run() {
+        sender.setPoolSize(options.connections());
+        String value = value();
+
+        // Set every key once, pipelined, so the run starts from a full key space.
+        long loadStart = System.nanoTime();
+        List<CompletableFuture<JsonObject>> loads = new ArrayList<>();
+        for (int key = 0; key < options.keys(); key++) {
+            loads.add(sender.sendAsync(request(Operation.SET, key, value)));
+            if (loads.size() == 1024) {
+                loads.forEach(CompletableFuture::join);
+                loads.clear();
+            }
+        }
+        loads.forEach(CompletableFuture::join);
+        long loadMillis = (System.nanoTime() - loadStart) / 1_000_000;
+
+        // Run workers until enough requests were claimed or time is up.
+        AtomicLong remaining = new AtomicLong(options.requests() > 0 ? options.requests() : Long.MAX_VALUE);
+        long deadline = options.requests() > 0 ? Long.MAX_VALUE : System.nanoTime() + options.durationMillis() * 1_000_000;
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.workers(); i++) {
+            var worker = new Worker(value, remaining, deadline);
+            workers.add(worker);
+            var thread = new Thread(worker, "benchmark-worker");
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for benchmark workers.");
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        sender.close();
+
+        return report(workers, elapsedNanos, loadMillis);
+    }
+
+    /**
+     * Build report from worker results.
+     *
+     * @param workers      Finished workers.
+     * @param elapsedNanos Time from first request to last response.
+     * @param loadMillis   Time spent filling the key space.
+     * @return Report.
+     */
+    private JsonObject report(List<Worker> workers, long elapsedNanos, long loadMillis) {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram[] byOperation = new LatencyHistogram[Operation.values().length];
+        long[] errorResponses = new long[byOperation.length];
+        long failures = 0;
+        for (int i = 0; i < byOperation.length; i++) {
+            byOperation[i] = new LatencyHistogram();
+        }
+        for (Worker worker : workers) {
+            for (int i = 0; i < byOperation.length; i++) {
+                byOperation[i].add(worker.latencies[i]);
+                all.add(worker.latencies[i]);
+                errorResponses[i] += worker.errorResponses[i];
+            }
+            failures += worker.failures;
+        }
+
+        JsonObject report = new JsonObject();
+        JsonObject optionsAsJson = new JsonObject();
+        optionsAsJson.addProperty("workers", options.workers());
+        optionsAsJson.addProperty("connections", options.connections());
+        optionsAsJson.addProperty("durationMillis", options.requests() > 0 ? 0 : options.durationMillis());
+        optionsAsJson.addProperty("requests", options.requests());
+        JsonObject mix = new JsonObject();
+        for (Operation operation : Operation.values()) {
+            mix.addProperty(operation.name().toLowerCase(), options.mix()[operation.ordinal()]);
+        }
+        optionsAsJson.add("mix", mix);
+        optionsAsJson.addProperty("keys", options.keys());
+        optionsAsJson.addProperty("valueSize", options.valueSize());
+        optionsAsJson.addProperty("depth", options.depth());
+        report.add("options", optionsAsJson);
+
+        report.addProperty("loadMillis", loadMillis);
+        report.addProperty("elapsedMillis", elapsedNanos / 1_000_000);
+        report.addProperty("requests", all.count());
+        report.addProperty("failures", failures);
+        report.addProperty("throughput", elapsedNanos == 0 ? 0 : Math.round(all.count() * 1e10 / elapsedNanos) / 10.0);
+        report.add("latencyMicros", all.toJson());
+        JsonObject operations = new JsonObject();
+        for (Operation operation : Operation.values()) {
+            JsonObject latencies = byOperation[operation.ordinal()].toJson();
+            latencies.addProperty("errorResponses", errorResponses[operation.ordinal()]);
+            operations.add(operation.name().toLowerCase(), latencies);
+        }
+        report.add("byType", operations);
+        return report;
+    }
+
+    /**
+     * Build the value sets write: objects nested depth levels deep around a string of the value size.
+     *
+     * @return Value as JSON.
+     */
+    private String value() {
+        JsonObject leafParent = new JsonObject();
+        leafParent.add("value", new JsonPrimitive("x".repeat(Math.max(0, options.valueSize()))));
+        JsonObject value = leafParent;
+        for (int level = options.depth() - 1; level >= 1; level--) {
+            JsonObject parent = new JsonObject();
+            parent.add("level" + level, value);
+            value = parent;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Build a request for a key.
+     *
+     * @param operation Request type.
+     * @param key       Number of key in key space.
+     * @param value     Value to set.
+     * @return Request as JSON.
+     */
+    private String request(Operation operation, int key, String value) {
+        JsonObject request = new JsonObject();
+        request.addProperty("type", operation.name().toLowerCase());
+        if (operation == Operation.GET) {
+            // Read the leaf, walking every nesting level.
+            JsonArray keys = new JsonArray();
+            keys.add("bench" + key);
+            for (int level = 1; level < options.depth(); level++) {
+                keys.add("level" + level);
+            }
+            keys.add("value");
+            request.add("key", keys);
+        } else {
+            request.addProperty("key", "bench" + key);
+        }
+        String prefix = request.toString();
+        return operation == Operation.SET
+                ? prefix.substring(0, prefix.length() - 1) + ",\"value\":" + value + "}"
+                : prefix;
+    }
+
+    /*
+     * Sends requests one at a time, recording latencies in its own histograms.
+     */
+    private final class Worker implements Runnable {
+        private final String value;
+        private final AtomicLong remaining;
+        private final long deadline;
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+        private final long[] errorResponses = new long[Operation.values().length];
+        private long failures;
+
+        Worker(String value, AtomicLong remaining, long deadline) {
+            this.value = value;
+            this.remaining = remaining;
+            this.deadline = deadline;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            var random = ThreadLocalRandom.current();
+            int total = 0;
+            for (int weight : options.mix()) {
+                total += weight;
+            }
+
+            while (remaining.getAndDecrement() > 0 && System.nanoTime() < deadline) {
+                // Pick request type by weight.
+                int pick = random.nextInt(total);
+                Operation operation = Operation.GET;
+                for (Operation candidate : Operation.values()) {
+                    pick -= options.mix()[candidate.ordinal()];
+                    if (pick < 0) {
+                        operation = candidate;
+                        break;
+                    }
+                }
+                String request = request(operation, random.nextInt(options.keys()), value);
+
+                long start = System.nanoTime();
+                try {
+                    JsonObject response = sender.sendAsync(request).join();
+                    latencies[operation.ordinal()].record(System.nanoTime() - start);
+                    if (!"OK".equals(response.get("response").getAsString())) {
+                        errorResponses[operation.ordinal()]++;
+                    }
+                } catch (CompletionException e) {
+                    failures++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package client;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * Persistent framed connection (see Framing) with any number of requests in flight. Requests are
+ * queued and written by a writer thread, which flushes once the queue is empty, so requests sent
+ * together share network writes. A reader thread completes the oldest waiting future with each
+ * response, since responses arrive in request order. Once the connection fails, every waiting
+ * and later request fails with the same error.
+ */
+final class Connection {
+    private record Outgoing(String request, CompletableFuture<JsonObject> future) {
+    }
+
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+
+    // Requests not yet written, and futures of requests written but not yet answered, in order.
+    private final BlockingQueue<Outgoing> outgoing = new LinkedBlockingQueue<>();
+    private final Queue<CompletableFuture<JsonObject>> waiting = new ConcurrentLinkedQueue<>();
+
+    private final Thread writer;
+    private volatile IOException failure;
+
+    /**
+     * Open connection.
+     *
+     * @param host Server host.
+     * @param port Server port.
+     * @throws IOException If connection could not be opened.
+     */
+    Connection(String host, int port) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setTcpNoDelay(true);
+            inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            outputStream.write(Framing.PREAMBLE);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        writer = startThread("client-writer", this::write);
+        startThread("client-reader", this::read);
+    }
+
+    /**
+     * Send request without waiting for its response.
+     *
+     * @param request Request to send.
+     * @return Future completed with the parsed response, or exceptionally if the connection fails.
+     */
+    CompletableFuture<JsonObject> send(String request) {
+        var future = new CompletableFuture<JsonObject>();
+        outgoing.add(new Outgoing(request, future));
+
+        // Fail request queued after the writer has stopped.
+        if (failure != null) {
+            failAll(failure);
+        }
+        return future;
+    }
+
+    /**
+     * Check whether connection can still be used.
+     *
+     * @return true if connection has not failed or been closed.
+     */
+    boolean isOpen() {
+        return failure == null;
+    }
+
+    /**
+     * Close connection, failing requests still in flight.
+     */
+    void close() {
+        fail(new IOException("Connection closed."));
+    }
+
+    /**
+     * Write queued requests until connection fails.
+     */
+    private void write() {
+        try {
+            while (failure == null) {
+                Outgoing next = outgoing.take();
+                do {
+                    // Future waits before request is written, so its response always finds it.
+                    waiting.add(next.future());
+                    Framing.writeFrame(outputStream, next.request());
+                    next = outgoing.poll();
+                } while (next != null);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("Interrupted while sending requests.", e));
+        }
+    }
+
+    /**
+     * Complete waiting futures with responses until connection fails.
+     */
+    private void read() {
+        try {
+            while (failure == null) {
+                String response = Framing.readFrame(inputStream);
+                CompletableFuture<JsonObject> future = waiting.poll();
+                if (future == null) {
+                    throw new IOException("Response without request.");
+                }
+                try {
+                    future.complete(JsonParser.parseString(response).getAsJsonObject());
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Mark connection failed, close socket and fail requests in flight.
+     *
+     * @param e Cause of failure.
+     */
+    private void fail(IOException e) {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        writer.interrupt();
+        failAll(failure);
+    }
+
+    /**
+     * Fail every request not yet answered.
+     *
+     * @param e Cause of failure.
+     */
+    private void failAll(IOException e) {
+        CompletableFuture<JsonObject> future;
+        while ((future = waiting.poll()) != null) {
+            future.completeExceptionally(e);
+        }
+        Outgoing next;
+        while ((next = outgoing.poll()) != null) {
+            next.future().completeExceptionally(e);
+        }
+    }
+
+    private static Thread startThread(String name, Runnable task) {
+        var thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
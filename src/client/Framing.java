@@ -0,0 +1,49 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Framed protocol: the connection starts with the 4 byte preamble "JDB1". After that, each
+ * request and response is a 4 byte big-endian length followed by that many bytes of UTF-8
+ * JSON. Responses arrive in request order.
+ */
+final class Framing {
+    static final byte[] PREAMBLE = "JDB1".getBytes(StandardCharsets.US_ASCII);
+
+    private Framing() {
+    }
+
+    /**
+     * Read a frame.
+     *
+     * @param inputStream Input stream to read from.
+     * @return Frame contents.
+     * @throws IOException If frame could not be read.
+     */
+    static String readFrame(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0) {
+            throw new IOException(String.format("Invalid frame length %d.", length));
+        }
+
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a frame. Output stream is not flushed.
+     *
+     * @param outputStream Output stream to write to.
+     * @param contents     Frame contents.
+     * @throws IOException If frame could not be written.
+     */
+    static void writeFrame(DataOutputStream outputStream, String contents) throws IOException {
+        byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+}
@@ -0,0 +1,133 @@
+package client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/*
+ * Latency histogram with fixed memory. Each power of two range of nanoseconds is split into
+ * 64 equal buckets, so a recorded value is off by under 1.6%. Not thread safe: each worker
+ * records into its own histogram and the histograms are merged once the run is over.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Counts by bucket. Values below SUB_BUCKETS nanoseconds are counted exactly.
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos Latency in nanoseconds.
+     */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Add counts of another histogram.
+     *
+     * @param other Histogram to add.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Get latency at or below which a share of recorded latencies lie.
+     *
+     * @param percentile Share of latencies, from 0 to 100.
+     * @return Highest latency of the bucket holding that percentile, in nanoseconds, or 0 if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Summarize histogram in microseconds.
+     *
+     * @return Object with "count", "mean", "p50", "p90", "p99", "p99.9" and "max", and a
+     * "histogram" array of [upper bound, count] pairs per power of two microseconds.
+     */
+    JsonObject toJson() {
+        JsonObject summary = new JsonObject();
+        summary.addProperty("count", count);
+        summary.addProperty("mean", count == 0 ? 0 : micros(sum / count));
+        summary.addProperty("p50", micros(percentile(50)));
+        summary.addProperty("p90", micros(percentile(90)));
+        summary.addProperty("p99", micros(percentile(99)));
+        summary.addProperty("p99.9", micros(percentile(99.9)));
+        summary.addProperty("max", micros(max));
+
+        // Coarse histogram: count of latencies up to 1, 2, 4, ... microseconds.
+        JsonArray histogram = new JsonArray();
+        long upperNanos = 1000;
+        long seen = 0;
+        int bucket = 0;
+        while (seen < count) {
+            long inRange = 0;
+            for (; bucket < counts.length && highestValue(bucket) <= upperNanos; bucket++) {
+                inRange += counts[bucket];
+            }
+            if (inRange > 0) {
+                JsonArray pair = new JsonArray();
+                pair.add(upperNanos / 1000);
+                pair.add(inRange);
+                histogram.add(pair);
+            }
+            seen += inRange;
+            upperNanos *= 2;
+        }
+        summary.add("histogram", histogram);
+        return summary;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return SUB_BUCKETS + (magnitude - 1) * SUB_BUCKETS / 2 + subBucket;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = (bucket - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+        long subBucket = (bucket - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+}
@@ -3,14 +3,18 @@ package client;
 import client.util.Logger;
 import com.beust.jcommander.JCommander;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public final class Main {
     public static Logger logger;
@@ -47,6 +51,13 @@ public final class Main {
                 .build()
                 .parse(args);
 
+        // Run benchmark instead of sending a request if requested.
+        if (argsParsed.benchmark()) {
+            runBenchmark(argsParsed);
+            logger.info("JSON Database client ended.");
+            return;
+        }
+
         String requestAsString;
 
         // Was a request input file specified?
@@ -82,6 +93,8 @@ public final class Main {
                     requestAsMap.put("type", "delete");
                     requestAsMap.put("key", argsParsed.key());
                 }
+                case ("replication") -> requestAsMap.put("type", "replication");
+                case ("stats") -> requestAsMap.put("type", "stats");
                 case ("exit") -> requestAsMap.put("type", "exit");
             }
             var gson = new Gson();
@@ -90,8 +103,70 @@ public final class Main {
 
         // Send request.
         sender.setLogger(logger);
-        sender.sendRequest(requestAsString);
+        sender.setServerAddress(argsParsed.host());
+        sender.setServerPort(argsParsed.port());
+        if (argsParsed.async()) {
+            // Send each line as its own request, spread over a pool of connections.
+            sender.setPoolSize(argsParsed.connections());
+            List<String> requests = requestAsString.lines()
+                    .filter(line -> !line.isBlank())
+                    .toList();
+            List<CompletableFuture<JsonObject>> responses = requests.stream()
+                    .map(sender::sendAsync)
+                    .toList();
+            for (int i = 0; i < requests.size(); i++) {
+                logger.console(String.format("Sent: %s", requests.get(i)));
+                try {
+                    logger.console(String.format("Received: %s", responses.get(i).join()));
+                } catch (CompletionException e) {
+                    logger.console("Unexpected error communicating with server. " + e.getCause(), Logger.Severity.ERROR);
+                }
+            }
+            sender.close();
+        } else if (argsParsed.pipeline()) {
+            // Send each line as its own request over one connection.
+            List<String> requests = requestAsString.lines()
+                    .filter(line -> !line.isBlank())
+                    .toList();
+            sender.sendRequests(requests);
+        } else {
+            sender.sendRequest(requestAsString);
+        }
 
         logger.info("JSON Database client ended.");
     }
+
+    /**
+     * Generate load against server and print report.
+     *
+     * @param argsParsed Benchmark options.
+     */
+    private static void runBenchmark(ArgsParsed argsParsed) {
+        var options = new Benchmark.Options(
+                Math.max(1, argsParsed.workers()),
+                Math.max(1, argsParsed.connections()),
+                Math.max(1, argsParsed.duration()) * 1000L,
+                Math.max(0, argsParsed.requests()),
+                Benchmark.parseMix(argsParsed.mix()),
+                Math.max(1, argsParsed.keys()),
+                Math.max(0, argsParsed.valueSize()),
+                Math.max(1, argsParsed.depth()));
+        sender.setLogger(logger);
+        sender.setServerAddress(argsParsed.host());
+        sender.setServerPort(argsParsed.port());
+        logger.info("Benchmark started.");
+        String report = new Benchmark(options, sender).run().toString();
+        logger.console(report);
+
+        // Write report to file as well if requested.
+        if (argsParsed.outputFile() != null) {
+            try {
+                Files.writeString(Paths.get(argsParsed.outputFile()), report + System.lineSeparator());
+            } catch (IOException e) {
+                String message = "Unexpected error writing benchmark report. " + e;
+                logger.console(message, Logger.Severity.ERROR);
+                throw new RuntimeException(message);
+            }
+        }
+    }
 }
@@ -8,6 +8,8 @@ public final class RequestTypeValidator implements IParameterValidator {
         set,
         get,
         delete,
+        replication,
+        stats,
         exit
     }
 
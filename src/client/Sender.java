@@ -1,11 +1,17 @@
 package client;
 
 import client.util.Logger;
+import com.google.gson.JsonObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public final class Sender {
     private static final Sender instance = new Sender();
@@ -17,8 +23,12 @@ public final class Sender {
         return instance;
     }
 
-    private static final String SERVER_ADDRESS = "127.0.0.1";
-    private static final int SERVER_PORT = 20123;
+    private String serverAddress = "127.0.0.1";
+    private int serverPort = 20123;
+
+    // Persistent connections shared by asynchronous requests, opened when first needed. Guarded by this.
+    private Connection[] pool = new Connection[4];
+    private int nextConnection;
 
     private Logger logger;
 
@@ -31,6 +41,97 @@ public final class Sender {
         this.logger = logger;
     }
 
+    /**
+     * Set address of server. Connections already in the pool are closed.
+     *
+     * @param serverAddress Host name or IP address of server.
+     */
+    public synchronized void setServerAddress(String serverAddress) {
+        this.serverAddress = serverAddress;
+        closeConnections();
+    }
+
+    /**
+     * Set port of server. Connections already in the pool are closed.
+     *
+     * @param serverPort Port server listens on.
+     */
+    public synchronized void setServerPort(int serverPort) {
+        this.serverPort = serverPort;
+        closeConnections();
+    }
+
+    /**
+     * Set number of persistent connections asynchronous requests are spread over. Connections
+     * already in the pool are closed.
+     *
+     * @param poolSize Number of connections.
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        closeConnections();
+        pool = new Connection[Math.max(1, poolSize)];
+        nextConnection = 0;
+    }
+
+    /**
+     * Send a request to server without waiting for its response. Requests are pipelined over a
+     * pool of persistent connections, so any number can be in flight. Requests sent by one thread
+     * are answered in order only if they share a connection, so send dependent requests after the
+     * response to the request they depend on.
+     *
+     * @param request Request to send.
+     * @return Future completed with the parsed response, or exceptionally if the connection failed.
+     */
+    public CompletableFuture<JsonObject> sendAsync(String request) {
+        Connection connection;
+        try {
+            connection = connection();
+        } catch (IOException e) {
+            String message = "Unexpected error connecting to server. " + e;
+            if (logger != null) {
+                logger.error(message);
+            }
+            return CompletableFuture.failedFuture(e);
+        }
+        return connection.send(request);
+    }
+
+    /**
+     * Close persistent connections, failing asynchronous requests still in flight.
+     */
+    public synchronized void close() {
+        closeConnections();
+    }
+
+    /**
+     * Pick a pool connection round robin, opening it if it is not open yet or has failed.
+     *
+     * @return Open connection.
+     * @throws IOException If connection could not be opened.
+     */
+    private synchronized Connection connection() throws IOException {
+        int slot = nextConnection;
+        nextConnection = (nextConnection + 1) % pool.length;
+        Connection connection = pool[slot];
+        if (connection == null || !connection.isOpen()) {
+            connection = new Connection(serverAddress, serverPort);
+            pool[slot] = connection;
+        }
+        return connection;
+    }
+
+    /**
+     * Close and forget pool connections. Must be called while holding this.
+     */
+    private void closeConnections() {
+        for (int i = 0; i < pool.length; i++) {
+            if (pool[i] != null) {
+                pool[i].close();
+                pool[i] = null;
+            }
+        }
+    }
+
     /**
      * Send a request to server.
      *
@@ -38,7 +139,7 @@ public final class Sender {
      */
     public void sendRequest(String request) {
         try (
-                var serverSocket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+                var serverSocket = new Socket(serverAddress, serverPort);
                 var inputStream = new DataInputStream(serverSocket.getInputStream());
                 var outputStream = new DataOutputStream(serverSocket.getOutputStream())
         ) {
@@ -55,4 +156,56 @@ public final class Sender {
             throw new RuntimeException(message);
         }
     }
+
+    /**
+     * Send requests to server over one connection. All requests are sent without waiting
+     * for responses, which arrive in request order.
+     *
+     * @param requests Requests to send.
+     * @return Responses, in request order.
+     */
+    public List<String> sendRequests(List<String> requests) {
+        try (
+                var serverSocket = new Socket(serverAddress, serverPort);
+                var inputStream = new DataInputStream(new BufferedInputStream(serverSocket.getInputStream()));
+                var outputStream = new DataOutputStream(new BufferedOutputStream(serverSocket.getOutputStream()))
+        ) {
+            // Send requests to server while responses are read, so neither side waits on a full socket buffer.
+            IOException[] sendError = new IOException[1];
+            var writer = new Thread(() -> {
+                try {
+                    outputStream.write(Framing.PREAMBLE);
+                    for (String request : requests) {
+                        Framing.writeFrame(outputStream, request);
+                        logger.console(String.format("Sent: %s", request));
+                    }
+                    outputStream.flush();
+                } catch (IOException e) {
+                    sendError[0] = e;
+                }
+            });
+            writer.start();
+
+            // Receive responses from server.
+            List<String> responses = new ArrayList<>(requests.size());
+            for (int i = 0; i < requests.size(); i++) {
+                String response = Framing.readFrame(inputStream);
+                logger.console(String.format("Received: %s", response));
+                responses.add(response);
+            }
+
+            writer.join();
+            if (sendError[0] != null) {
+                throw sendError[0];
+            }
+            return responses;
+        } catch (IOException e) {
+            String message = "Unexpected error communicating with server. " + e;
+            logger.error(message);
+            throw new RuntimeException(message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending requests.");
+        }
+    }
 }
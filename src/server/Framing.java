@@ -0,0 +1,83 @@
+package server;
+
+import server.util.Settings;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Framed protocol: the client opens a connection by sending the 4 byte preamble "JDB1". After
+ * that, each request and response is a 4 byte big-endian length followed by that many bytes
+ * of UTF-8 JSON. The connection stays open for any number of requests, and responses are sent
+ * in request order, so a client may send requests without waiting for earlier responses.
+ *
+ * Connections that do not start with the preamble use the original single request protocol
+ * (DataOutputStream.writeUTF / DataInputStream.readUTF, one request per connection). A
+ * writeUTF message starts with its length and then a JSON object, so it cannot match.
+ */
+final class Framing {
+    static final byte[] PREAMBLE = "JDB1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int maxFrameBytes = Settings.getInt("maxFrameBytes", 64 * 1024 * 1024);
+
+    private Framing() {
+    }
+
+    /**
+     * Check whether client opened connection with framed protocol preamble. If not, nothing is
+     * consumed from input stream. Input stream must support mark and reset.
+     *
+     * @param inputStream Input stream from client.
+     * @return true if client uses framed protocol.
+     * @throws IOException If input stream could not be read.
+     */
+    static boolean readPreamble(DataInputStream inputStream) throws IOException {
+        inputStream.mark(PREAMBLE.length);
+        byte[] start = inputStream.readNBytes(PREAMBLE.length);
+        if (Arrays.equals(start, PREAMBLE)) {
+            return true;
+        }
+        inputStream.reset();
+        return false;
+    }
+
+    /**
+     * Read a frame.
+     *
+     * @param inputStream Input stream to read from.
+     * @return Frame contents, or null if connection was closed between frames.
+     * @throws IOException If frame could not be read or is too large.
+     */
+    static String readFrame(DataInputStream inputStream) throws IOException {
+        // Check for connection closed between frames.
+        int first = inputStream.read();
+        if (first < 0) {
+            return null;
+        }
+
+        int length = (first << 24) | (inputStream.readUnsignedByte() << 16) | inputStream.readUnsignedShort();
+        if (length < 0 || length > maxFrameBytes) {
+            throw new IOException(String.format("Frame length %d is not between 0 and %d.", length, maxFrameBytes));
+        }
+
+        byte[] bytes = new byte[length];
+        inputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a frame. Output stream is not flushed.
+     *
+     * @param outputStream Output stream to write to.
+     * @param contents     Frame contents.
+     * @throws IOException If frame could not be written.
+     */
+    static void writeFrame(DataOutputStream outputStream, String contents) throws IOException {
+        byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+}
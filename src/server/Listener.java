@@ -1,12 +1,22 @@
 package server;
 
+import server.util.DaemonThreadFactory;
 import server.util.Logger;
+import server.util.Metrics;
+import server.util.Settings;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.SocketTimeoutException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public final class Listener {
+public final class Listener implements Server {
     private static final Listener instance = new Listener();
 
     private Listener() {
@@ -16,35 +26,73 @@ public final class Listener {
         return instance;
     }
 
-    private static final int SERVER_PORT = 20123;
 
-    private boolean stopListenerFlag = false;
-    private int socketTimeout = 20;
+    /**
+     * How connections are handed to request handlers.
+     */
+    enum ExecutorType {
+        // Fixed number of platform threads with a bounded queue of waiting connections.
+        POOL,
+        // New virtual thread per connection. Needs Java 21 or later; falls back to POOL otherwise.
+        VIRTUAL
+    }
+
+    private volatile boolean stopListenerFlag = false;
+    private volatile ServerSocket server;
 
     /**
      * Start listening on port.
      *
      * @param logger Logger to log to.
-     * @param port   Port to listen to.
+     * @param port   Port to listen on.
      */
-    public void startListening(Logger logger) {
-        logger.console("Server started!");
-
-        // Wait for connections.
-        while (!stopListenerFlag) {
-            try (var server = new ServerSocket(SERVER_PORT)) {
-                // Timeout periodically to allow checking stop flag.
-                // (The testing system wanted a way to request that the server stop.)
-                server.setSoTimeout(socketTimeout);
-
-                // Start a session handler for connection.
-                var sessionHandler = new RequestHandler(this, logger, server.accept());
-                sessionHandler.start();
-            } catch (SocketTimeoutException ignored) {
-            } catch (IOException e) {
-                String message = "Unexpected error while listening. " + e;
-                logger.error(message);
-                throw new RuntimeException(message);
+    @Override
+    public void startListening(Logger logger, int port) {
+        ExecutorService executor = createExecutor(logger);
+
+        // Pool threads are held for as long as a connection is open, so connections that stop
+        // sending are closed. Virtual threads are cheap enough to wait.
+        int idleTimeoutMillis = executor instanceof ThreadPoolExecutor
+                ? Math.max(0, Settings.getInt("idleTimeoutMillis", 60000))
+                : 0;
+
+        try (var server = new ServerSocket()) {
+            // Bind once. Connections arriving while a handler is being dispatched wait in the backlog.
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port), Settings.getInt("backlog", 128));
+            this.server = server;
+
+            logger.console("Server started!");
+
+            // Wait for connections. Stopping closes server socket, which ends accept.
+            while (!stopListenerFlag) {
+                try {
+                    Socket socket = server.accept();
+                    try {
+                        socket.setSoTimeout(idleTimeoutMillis);
+                    } catch (SocketException e) {
+                        // Client already closed connection.
+                        socket.close();
+                        continue;
+                    }
+                    executor.execute(new RequestHandler(this, logger, socket));
+                } catch (SocketException e) {
+                    if (!stopListenerFlag) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            String message = "Unexpected error while listening. " + e;
+            logger.error(message);
+            throw new RuntimeException(message);
+        } finally {
+            // Let requests in progress finish.
+            executor.shutdown();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -52,7 +100,50 @@ public final class Listener {
     /**
      * Stop listening on port.
      */
+    @Override
     public void stopListening() {
         stopListenerFlag = true;
+
+        // Wake up accept.
+        ServerSocket server = this.server;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Create executor that runs request handlers.
+     *
+     * @param logger Logger to log to.
+     * @return Executor.
+     */
+    private ExecutorService createExecutor(Logger logger) {
+        if (Settings.getEnum("executor", ExecutorType.POOL) == ExecutorType.VIRTUAL) {
+            try {
+                return (ExecutorService) java.util.concurrent.Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.info("Virtual threads are not available. Using thread pool.");
+            }
+        }
+
+        // When all threads are busy and queue is full, new connections are closed. A handler
+        // serves its connection until the client disconnects, so accept thread never runs one.
+        int poolSize = Math.max(1, Settings.getInt("poolSize", 64));
+        LongAdder rejected = Metrics.getInstance().counter("connections.rejected");
+        return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Settings.getInt("queueSize", 1024))),
+                new DaemonThreadFactory("request-handler"),
+                (handler, executor) -> {
+                    rejected.increment();
+                    if (!executor.isShutdown()) {
+                        logger.error("All request handlers are busy. Closing new connection.");
+                    }
+                    ((RequestHandler) handler).reject();
+                });
     }
 }
@@ -1,11 +1,22 @@
 package server;
 
+import server.data.DataHandler;
 import server.util.Logger;
+import server.util.Settings;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
 public final class Main {
     public static Logger logger;
 
-    private static final Listener listener = Listener.getInstance();
+    enum Engine {
+        // Blocking sockets with a thread per connection.
+        BLOCKING,
+        // Non-blocking sockets on a few event loop threads.
+        NIO
+    }
 
     public static void main(String[] args) {
         // Initialize logger.
@@ -13,8 +24,67 @@ public final class Main {
 
         logger.info("JSON Database server started.");
 
-        listener.startListening(logger);
+        // Pick server engine and port. "-engine nio" and "-port 20125" on command line override
+        // jsondb.engine and jsondb.port settings.
+        Engine engine = Settings.getEnum("engine", Engine.BLOCKING);
+        int port = Settings.getInt("port", 20123);
+        for (int i = 0; i < args.length - 1; i++) {
+            String value = args[i + 1];
+            if (args[i].equalsIgnoreCase("-engine")) {
+                try {
+                    engine = Engine.valueOf(value.trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    stopOnBadArgument(String.format("Unknown server engine %s. Use one of: %s.", value,
+                            Arrays.stream(Engine.values()).map(option -> option.name().toLowerCase())
+                                    .collect(Collectors.joining(", "))));
+                    return;
+                }
+            } else if (args[i].equalsIgnoreCase("-port")) {
+                try {
+                    port = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    port = -1;
+                }
+                if (port < 0 || port > 65535) {
+                    stopOnBadArgument(String.format("Invalid port %s. Use a number from 0 to 65535.", value));
+                    return;
+                }
+            }
+        }
+        Server server = switch (engine) {
+            case BLOCKING -> Listener.getInstance();
+            case NIO -> SelectorListener.getInstance();
+        };
+        logger.info("Using " + engine.name().toLowerCase() + " server engine.");
+
+        // Start streaming changes to followers, or following a primary, if requested.
+        DataHandler dataHandler = DataHandler.getInstance();
+        dataHandler.setLogger(logger);
+        try {
+            dataHandler.startReplication();
+        } catch (IOException e) {
+            String message = "Unexpected error starting replication. " + e;
+            logger.error(message);
+            throw new RuntimeException(message);
+        }
+
+        server.startListening(logger, port);
+
+        // Write any changes not yet flushed to data file.
+        dataHandler.close();
+
+        logger.info("JSON Database server ended.");
+        logger.close();
+    }
 
+    /**
+     * Report bad command line argument and end server before it starts.
+     *
+     * @param message Error message.
+     */
+    private static void stopOnBadArgument(String message) {
+        logger.console(message, Logger.Severity.ERROR);
         logger.info("JSON Database server ended.");
+        logger.close();
     }
 }
@@ -3,25 +3,52 @@ package server;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import server.data.BatchOperation;
 import server.data.DataHandler;
 import server.data.DataHandlerResult;
+import server.util.LatencyRecorder;
 import server.util.Logger;
+import server.util.Metrics;
+import server.util.RequestTrace;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
-public final class RequestHandler extends Thread {
-    private final Listener listener;
+public final class RequestHandler implements Runnable {
+    private final Server listener;
     private final Logger logger;
     private final Socket clientSocket;
 
+    // When connection was accepted, for the slow log. Zero if requests are not traced.
+    private final long acceptedNanos = RequestTrace.enabled() ? System.nanoTime() : 0;
+
+    private boolean stopListenerFlag = false;
+
+    // Reused for every response on this connection.
+    private final StringBuilder responseText = new StringBuilder();
+    private final Writer responseTextWriter = new ResponseTextWriter();
+
     private DataHandler dataHandler = DataHandler.getInstance();
 
     /**
@@ -33,7 +60,7 @@ public final class RequestHandler extends Thread {
         this.dataHandler = dataHandler;
     }
 
-    public RequestHandler(Listener listener, Logger logger, Socket clientSocket) {
+    public RequestHandler(Server listener, Logger logger, Socket clientSocket) {
         this.listener = listener;
         this.logger = logger;
         this.clientSocket = clientSocket;
@@ -43,6 +70,11 @@ public final class RequestHandler extends Thread {
         SET("Set value", 2),
         GET("Get value", 1),
         DELETE("Delete value", 1),
+        BATCH("Run several operations together", 0),
+        FIND("Find records by field value", 1),
+        SCAN("List keys in order", 0),
+        REPLICATION("Show replication state", 0),
+        STATS("Show server statistics", 0),
         EXIT("Exit", 0);
 
         private final String label;
@@ -65,10 +97,74 @@ public final class RequestHandler extends Thread {
     record CommandWithFields(
             Command command,
             String[] keys,
-            JsonElement value
+            JsonElement value,
+            List<CommandWithFields> operations,
+            boolean atomic,
+            Query query,
+            ScanRange scanRange,
+            boolean reset
+    ) {
+        CommandWithFields(Command command, String[] keys, JsonElement value) {
+            this(command, keys, value, List.of(), false, null, null, false);
+        }
+    }
+
+    /**
+     * Field and value, or range of values, to find.
+     */
+    record Query(
+            String[] field,
+            JsonElement value,
+            JsonElement min,
+            JsonElement max
+    ) {
+    }
+
+    /**
+     * Bounds and page size of a scan. Null bounds are open.
+     */
+    record ScanRange(
+            String start,
+            String end,
+            String prefix,
+            String cursor,
+            int limit,
+            boolean values
     ) {
     }
 
+    // Keys listed per scan page unless request asks for another limit.
+    private static final int SCAN_DEFAULT_LIMIT = 100;
+
+    private static final Gson gson = new Gson();
+
+    // Commands allowed inside a batch.
+    private static final Set<Command> BATCH_OPERATIONS = EnumSet.of(Command.SET, Command.GET, Command.DELETE);
+
+    // Requests, error responses and handling time by command, looked up once so recording is cheap.
+    private static final Metrics metrics = Metrics.getInstance();
+    private static final Map<Command, LongAdder> requestCounts = new EnumMap<>(Command.class);
+    private static final Map<Command, LongAdder> errorCounts = new EnumMap<>(Command.class);
+    private static final Map<Command, LatencyRecorder> commandLatencies = new EnumMap<>(Command.class);
+    private static final LongAdder invalidRequests = metrics.counter("requests.invalid");
+    private static final LatencyRecorder parseLatency = metrics.latency("parse");
+    private static final LongAdder connectionsOpened = metrics.counter("connections.opened");
+    private static final LongAdder activeConnections = metrics.gauge("connections.active");
+    private static final LongAdder activeHandlers = metrics.gauge("handlers.active");
+    private static final LongAdder idleClosed = metrics.counter("connections.idleClosed");
+
+    static {
+        for (Command command : Command.values()) {
+            String name = command.name().toLowerCase();
+            requestCounts.put(command, metrics.counter("requests." + name));
+            errorCounts.put(command, metrics.counter("errors." + name));
+            commandLatencies.put(command, metrics.latency("command." + name));
+        }
+    }
+
+    // Whether response being written reports an error.
+    private boolean responseFailed;
+
     enum Result {
         OK,
         ERROR
@@ -79,152 +175,552 @@ public final class RequestHandler extends Thread {
      */
     @Override
     public void run() {
+        connectionsOpened.increment();
+        activeConnections.increment();
+        activeHandlers.increment();
         try (
-                var inputStream = new DataInputStream(clientSocket.getInputStream());
-                var outputStream = new DataOutputStream(clientSocket.getOutputStream())
+                var inputStream = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+                var outputStream = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()))
         ) {
             dataHandler.setLogger(logger);
-            boolean stopListenerFlag = false;
-
-            // Receive request from client.
-            String request = inputStream.readUTF();
-            logger.console(String.format("Received: %s", request));
-
-            // Parse request into a command and fields.
-            Optional<CommandWithFields> commandWithFieldsOptional = parseRequest(request);
 
-            // Could we not parse request?
-            JsonElement responseAsElement = new Gson().fromJson("{}", JsonElement.class);
-            JsonObject responseAsObject = (JsonObject) responseAsElement;
-            if (commandWithFieldsOptional.isEmpty()) {
-                responseAsObject.addProperty("response", Result.ERROR.name());
-            } else {
-                // Handle command.
-                CommandWithFields commandWithFields = commandWithFieldsOptional.get();
-                switch (commandWithFields.command()) {
-                    // Set value.
-                    case SET -> {
-                        DataHandlerResult dataHandlerResult = dataHandler.set(commandWithFields.keys(), commandWithFields.value());
-                        responseAsObject.addProperty("response", dataHandlerResult.result().name());
-                        if (dataHandlerResult.result() == DataHandler.Result.ERROR) {
-                            responseAsObject.add("reason", dataHandlerResult.value());
-                        }
+            if (Framing.readPreamble(inputStream)) {
+                // Handle framed requests until client closes connection or requests exit. A
+                // trace starts once its frame is read, since waiting for a frame is idle time.
+                String request;
+                while (!stopListenerFlag && (request = Framing.readFrame(inputStream)) != null) {
+                    RequestTrace trace = RequestTrace.begin(System.nanoTime());
+                    String response = handleRequest(request);
+                    long writeStart = trace != null ? System.nanoTime() : 0;
+                    Framing.writeFrame(outputStream, response);
+
+                    // Hold responses while more pipelined requests are already waiting.
+                    if (inputStream.available() == 0) {
+                        outputStream.flush();
                     }
-
-                    // Get value.
-                    case GET -> {
-                        DataHandlerResult dataHandlerResult = dataHandler.get(commandWithFields.keys());
-                        responseAsObject.addProperty("response", dataHandlerResult.result().name());
-                        if (dataHandlerResult.result() == DataHandler.Result.ERROR) {
-                            responseAsObject.add("reason", dataHandlerResult.value());
-                        } else {
-                            responseAsObject.add("value", dataHandlerResult.value());
-                        }
+                    if (trace != null) {
+                        trace.add(RequestTrace.Phase.WRITE, System.nanoTime() - writeStart);
+                        trace.end(request);
                     }
+                }
+                outputStream.flush();
+            } else {
+                RequestTrace trace = RequestTrace.begin(acceptedNanos);
+                long readStart = trace != null ? System.nanoTime() : 0;
+                if (trace != null) {
+                    trace.add(RequestTrace.Phase.QUEUE, readStart - acceptedNanos);
+                }
 
-                    // Delete value.
-                    case DELETE -> {
-                        DataHandlerResult dataHandlerResult = dataHandler.delete(commandWithFields.keys());
-                        responseAsObject.addProperty("response", dataHandlerResult.result().name());
-                        if (dataHandlerResult.result() == DataHandler.Result.ERROR) {
-                            responseAsObject.add("reason", dataHandlerResult.value());
-                        }
-                    }
+                // Receive request from client.
+                String request = inputStream.readUTF();
+                if (trace != null) {
+                    trace.add(RequestTrace.Phase.READ, System.nanoTime() - readStart);
+                }
 
-                    // Tell listener to stop listening.
-                    case EXIT -> {
-                        stopListenerFlag = true;
-                        responseAsObject.addProperty("response", Result.OK.name());
-                    }
+                // Send response to client.
+                String response = handleRequest(request);
+                long writeStart = trace != null ? System.nanoTime() : 0;
+                outputStream.writeUTF(response);
+                outputStream.flush();
+                if (trace != null) {
+                    trace.add(RequestTrace.Phase.WRITE, System.nanoTime() - writeStart);
+                    trace.end(request);
                 }
             }
 
-            // Send response to client.
-            String responseAsString = new Gson().toJson(responseAsObject);
-            outputStream.writeUTF(responseAsString);
-            logger.console(String.format("Sent: %s", responseAsString));
-
             // Close client connection.
             clientSocket.close();
 
             // Let listener know if client requested exit.
             if (stopListenerFlag) listener.stopListening();
+        } catch (SocketTimeoutException e) {
+            // Client sent nothing for jsondb.idleTimeoutMillis. Free pool thread for other connections.
+            idleClosed.increment();
+            logger.console("Closing idle connection.", Logger.Severity.INFO);
+            closeQuietly();
+        } catch (IOException | RuntimeException e) {
+            // Only this connection is lost. Handler thread goes on to the next connection.
+            logger.console("Unexpected error handling request. " + e, Logger.Severity.ERROR);
+            closeQuietly();
+        } finally {
+            activeHandlers.decrement();
+            activeConnections.decrement();
+        }
+    }
+
+    /**
+     * Close connection without handling it, because no handler thread is free.
+     */
+    void reject() {
+        closeQuietly();
+    }
+
+    private void closeQuietly() {
+        try {
+            clientSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Check whether a handled request asked for server to stop.
+     *
+     * @return true if client requested exit.
+     */
+    boolean stopRequested() {
+        return stopListenerFlag;
+    }
+
+    /**
+     * Handle a request.
+     *
+     * @param request Request received from client.
+     * @return Response to send to client.
+     */
+    String handleRequest(String request) {
+        RequestTrace trace = RequestTrace.current();
+        boolean timed = metrics.enabled() || trace != null;
+        long start = timed ? System.nanoTime() : 0;
+        logger.console(String.format("Received: %s", request));
+
+        // Parse request into a command and fields.
+        long parseStart = trace != null ? System.nanoTime() : 0;
+        if (trace != null) {
+            trace.add(RequestTrace.Phase.LOG, parseStart - start);
+        }
+        Optional<CommandWithFields> commandWithFieldsOptional = parseRequest(request);
+        if (timed) {
+            long parsed = System.nanoTime();
+            if (metrics.enabled()) {
+                parseLatency.record(parsed - start);
+            }
+            if (trace != null) {
+                trace.add(RequestTrace.Phase.PARSE, parsed - parseStart);
+            }
+        }
+        responseFailed = false;
+
+        // Write response straight to text without building a JsonObject first.
+        responseText.setLength(0);
+        try (JsonWriter responseWriter = new JsonWriter(responseTextWriter)) {
+            // Same output as Gson.toJson.
+            responseWriter.setHtmlSafe(true);
+            responseWriter.setSerializeNulls(false);
+
+            responseWriter.beginObject();
+            if (commandWithFieldsOptional.isEmpty()) {
+                // Could not parse request.
+                responseWriter.name("response").value(Result.ERROR.name());
+            } else {
+                writeResponse(commandWithFieldsOptional.get(), responseWriter);
+            }
+            responseWriter.endObject();
         } catch (IOException e) {
-            String message = "Unexpected error handling request. " + e;
-            logger.console(message, Logger.Severity.ERROR);
-            throw new RuntimeException(message);
+            throw new UncheckedIOException(e);
+        }
+
+        String responseAsString = responseText.toString();
+        long logStart = trace != null ? System.nanoTime() : 0;
+        logger.console(String.format("Sent: %s", responseAsString));
+        if (trace != null) {
+            trace.add(RequestTrace.Phase.LOG, System.nanoTime() - logStart);
         }
+
+        // Count request by command.
+        if (commandWithFieldsOptional.isEmpty()) {
+            invalidRequests.increment();
+        } else {
+            Command command = commandWithFieldsOptional.get().command();
+            requestCounts.get(command).increment();
+            if (responseFailed) {
+                errorCounts.get(command).increment();
+            }
+            if (metrics.enabled()) {
+                commandLatencies.get(command).record(System.nanoTime() - start);
+            }
+        }
+        return responseAsString;
     }
 
     /**
-     * Parse request into a command and fields.
+     * Handle command and write fields of its response.
+     *
+     * @param commandWithFields Command to handle.
+     * @param responseWriter    Writer positioned inside response object.
+     * @throws IOException If response could not be written.
+     */
+    private void writeResponse(CommandWithFields commandWithFields, JsonWriter responseWriter) throws IOException {
+        switch (commandWithFields.command()) {
+            // Set value.
+            case SET -> writeResult(dataHandler.set(commandWithFields.keys(), commandWithFields.value()), false, responseWriter);
+
+            // Get value.
+            case GET -> {
+                DataHandlerResult dataHandlerResult = dataHandler.getSerialized(commandWithFields.keys());
+                if (dataHandlerResult.result() == DataHandler.Result.OK) {
+                    responseWriter.name("response").value(Result.OK.name());
+                    responseWriter.name("value").jsonValue(dataHandlerResult.value().getAsString());
+                } else {
+                    writeResult(dataHandlerResult, true, responseWriter);
+                }
+            }
+
+            // Delete value.
+            case DELETE -> writeResult(dataHandler.delete(commandWithFields.keys()), false, responseWriter);
+
+            // Run several operations together.
+            case BATCH -> {
+                List<BatchOperation> operations = commandWithFields.operations().stream()
+                        .map(operation -> new BatchOperation(
+                                BatchOperation.Type.valueOf(operation.command().name()),
+                                operation.keys(),
+                                operation.value()))
+                        .toList();
+                List<DataHandlerResult> dataHandlerResults = dataHandler.batch(operations, commandWithFields.atomic());
+
+                // An atomic batch fails as a whole if any change failed.
+                boolean failed = false;
+                for (int i = 0; i < operations.size(); i++) {
+                    failed |= dataHandlerResults.get(i).result() == DataHandler.Result.ERROR
+                            && operations.get(i).type() != BatchOperation.Type.GET;
+                }
+                responseFailed = commandWithFields.atomic() && failed;
+                responseWriter.name("response").value((responseFailed ? Result.ERROR : Result.OK).name());
+
+                responseWriter.name("results").beginArray();
+                for (int i = 0; i < operations.size(); i++) {
+                    responseWriter.beginObject();
+                    writeResult(dataHandlerResults.get(i), operations.get(i).type() == BatchOperation.Type.GET, responseWriter);
+                    responseWriter.endObject();
+                }
+                responseWriter.endArray();
+            }
+
+            // Find records by field value.
+            case FIND -> {
+                Query query = commandWithFields.query();
+                writeResult(dataHandler.find(commandWithFields.keys(), query.field(), query.value(), query.min(), query.max()),
+                        true, responseWriter);
+            }
+
+            // List keys in order.
+            case SCAN -> {
+                ScanRange scanRange = commandWithFields.scanRange();
+                writeResult(dataHandler.scan(commandWithFields.keys(), scanRange.start(), scanRange.end(), scanRange.prefix(),
+                        scanRange.cursor(), scanRange.limit(), scanRange.values()), true, responseWriter);
+            }
+
+            // Show replication state.
+            case REPLICATION -> {
+                responseWriter.name("response").value(Result.OK.name());
+                responseWriter.name("value").jsonValue(dataHandler.replicationStatus().toString());
+            }
+
+            // Show server statistics, optionally starting counters over.
+            case STATS -> {
+                JsonObject stats = metrics.snapshot(commandWithFields.reset());
+                stats.add("responseCache", dataHandler.responseCacheStats());
+                stats.add("compression", dataHandler.compressionStats());
+                stats.add("replication", dataHandler.replicationStatus());
+                responseWriter.name("response").value(Result.OK.name());
+                responseWriter.name("value").jsonValue(stats.toString());
+            }
+
+            // Tell listener to stop listening.
+            case EXIT -> {
+                stopListenerFlag = true;
+                responseWriter.name("response").value(Result.OK.name());
+            }
+        }
+    }
+
+    /**
+     * Write result of a data handler operation.
+     *
+     * @param dataHandlerResult Result to write.
+     * @param withValue         Whether to write value of a successful result.
+     * @param responseWriter    Writer positioned inside an object.
+     * @throws IOException If result could not be written.
+     */
+    private void writeResult(DataHandlerResult dataHandlerResult, boolean withValue, JsonWriter responseWriter) throws IOException {
+        responseWriter.name("response").value(dataHandlerResult.result().name());
+        if (dataHandlerResult.result() == DataHandler.Result.ERROR) {
+            responseFailed = true;
+            responseWriter.name("reason");
+            writeElement(dataHandlerResult.value(), responseWriter);
+        } else if (withValue) {
+            responseWriter.name("value");
+            writeElement(dataHandlerResult.value(), responseWriter);
+        }
+    }
+
+    /**
+     * Write element. Same output as Gson.toJson.
+     *
+     * @param element        Element to write.
+     * @param responseWriter Writer to write to.
+     * @throws IOException If element could not be written.
+     */
+    private static void writeElement(JsonElement element, JsonWriter responseWriter) throws IOException {
+        if (element == null) {
+            responseWriter.nullValue();
+            return;
+        }
+        RequestTrace trace = RequestTrace.current();
+        long start = trace != null ? System.nanoTime() : 0;
+        gson.toJson(element, responseWriter);
+        if (trace != null) {
+            trace.add(RequestTrace.Phase.SERIALIZE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Parse request into a command and fields. Reads request as a stream, so only a value to
+     * set is turned into a JsonElement.
      *
      * @param requestAsString Request to parse.
      * @return Optional with command and fields parsed from request. Returns empty
      * Optional if request was not successfully parsed.
      */
     Optional<CommandWithFields> parseRequest(String requestAsString) {
-        final Type listType = new TypeToken<ArrayList<String>>() {
-        }.getType();
+        try (var requestReader = new JsonReader(new StringReader(requestAsString))) {
+            // Same leniency as Gson.fromJson.
+            requestReader.setStrictness(Strictness.LENIENT);
 
-        Optional<CommandWithFields> commandWithFields = Optional.empty();
+            Optional<CommandWithFields> commandWithFields = parseCommand(requestReader, true);
 
-        // Parse request.
-        JsonElement requestAsElement;
-        try {
-            requestAsElement = new Gson().fromJson(requestAsString, JsonElement.class);
-        } catch (com.google.gson.JsonParseException e) {
+            // Exit if anything follows request.
+            if (commandWithFields.isPresent() && requestReader.peek() != JsonToken.END_DOCUMENT) {
+                return Optional.empty();
+            }
             return commandWithFields;
+        } catch (IOException | IllegalStateException | NumberFormatException | com.google.gson.JsonParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Parse request object into a command and fields.
+     *
+     * @param requestReader Reader positioned at request.
+     * @param allowBatch    Whether request may be a batch.
+     * @return Optional with command and fields parsed from request. Returns empty
+     * Optional if request was not successfully parsed.
+     * @throws IOException If request is not valid JSON.
+     */
+    private Optional<CommandWithFields> parseCommand(JsonReader requestReader, boolean allowBatch) throws IOException {
+        // Exit if request is not a JsonObject.
+        if (requestReader.peek() != JsonToken.BEGIN_OBJECT) {
+            return Optional.empty();
         }
 
-        var requestAsObject = (JsonObject) requestAsElement;
+        // Read fields in whatever order they were sent.
+        String requestType = null;
+        String[] keys = null;
+        JsonElement value = null;
+        boolean hasValue = false;
+        List<CommandWithFields> operations = null;
+        boolean atomic = false;
+        String[] field = null;
+        JsonElement min = null;
+        JsonElement max = null;
+        String start = null;
+        String end = null;
+        String prefix = null;
+        String cursor = null;
+        int limit = SCAN_DEFAULT_LIMIT;
+        boolean withValues = false;
+        boolean reset = false;
+        requestReader.beginObject();
+        while (requestReader.hasNext()) {
+            switch (requestReader.nextName()) {
+                case "type" -> requestType = readString(requestReader);
+                case "key" -> keys = readKeys(requestReader);
+                case "value" -> {
+                    value = JsonParser.parseReader(requestReader);
+                    hasValue = true;
+                }
+                case "operations" -> {
+                    // Exit if operations are nested or not an array.
+                    if (!allowBatch || requestReader.peek() != JsonToken.BEGIN_ARRAY) {
+                        return Optional.empty();
+                    }
+                    operations = new ArrayList<>();
+                    requestReader.beginArray();
+                    while (requestReader.hasNext()) {
+                        Optional<CommandWithFields> operation = parseCommand(requestReader, false);
+                        if (operation.isEmpty() || !BATCH_OPERATIONS.contains(operation.get().command())) {
+                            return Optional.empty();
+                        }
+                        operations.add(operation.get());
+                    }
+                    requestReader.endArray();
+                }
+                case "atomic" -> atomic = requestReader.peek() == JsonToken.STRING
+                        ? Boolean.parseBoolean(requestReader.nextString())
+                        : requestReader.nextBoolean();
+                case "reset" -> reset = requestReader.peek() == JsonToken.STRING
+                        ? Boolean.parseBoolean(requestReader.nextString())
+                        : requestReader.nextBoolean();
+                case "field" -> field = requestReader.peek() == JsonToken.BEGIN_ARRAY
+                        ? readKeys(requestReader)
+                        : splitField(readString(requestReader));
+                case "start" -> start = readString(requestReader);
+                case "end" -> end = readString(requestReader);
+                case "prefix" -> prefix = readString(requestReader);
+                case "cursor" -> cursor = readString(requestReader);
+                case "limit" -> limit = requestReader.nextInt();
+                case "values" -> withValues = requestReader.nextBoolean();
+                case "min" -> min = JsonParser.parseReader(requestReader);
+                case "max" -> max = JsonParser.parseReader(requestReader);
+                default -> requestReader.skipValue();
+            }
+        }
+        requestReader.endObject();
 
         // Exit if request type is not present.
-        if (!requestAsObject.has("type")) {
-            return commandWithFields;
+        if (requestType == null) {
+            return Optional.empty();
         }
 
-        String requestType = requestAsObject.get("type").getAsString();
-
         // Check if known command was entered with valid fields.
         for (Command option : Command.values()) {
             if (option.name().equalsIgnoreCase(requestType)) {
-                String[] keys = null;
-                JsonElement value = null;
-
-                // Are keys required?
-                if (option.inputElementsCount() >= 1) {
-                    // Exit if keys are not present.
-                    if (!requestAsObject.has("key")) {
-                        return commandWithFields;
-                    }
+                // Exit if keys are required but not present.
+                if (option.inputElementsCount() >= 1 && (keys == null || keys.length == 0)) {
+                    return Optional.empty();
+                }
 
-                    // Prepare key.
-                    JsonElement keyAsElement = requestAsObject.get("key");
-                    if (keyAsElement.isJsonArray()) {
-                        List<String> keyList = new Gson().fromJson(keyAsElement, listType);
-                        keys = keyList.toArray(String[]::new);
-                    } else {
-                        keys = new String[]{keyAsElement.getAsString()};
-                    }
+                // Exit if a value is required but not present.
+                if (option.inputElementsCount() >= 2 && !hasValue) {
+                    return Optional.empty();
+                }
 
-                    // Is a value required?
-                    if (option.inputElementsCount() >= 2) {
-                        // Exit if value is not present.
-                        if (!requestAsObject.has("value")) {
-                            return commandWithFields;
-                        }
+                // Exit if batch operations are not present.
+                if (option == Command.BATCH) {
+                    return operations == null
+                            ? Optional.empty()
+                            : Optional.of(new CommandWithFields(Command.BATCH, null, null, operations, atomic, null, null, false));
+                }
 
-                        // Prepare value.
-                        value = requestAsObject.get("value");
+                // Exit if field, or value or range to find, is not present.
+                if (option == Command.FIND) {
+                    if (field == null || field.length == 0 || (hasValue && value.isJsonNull()) || (!hasValue && min == null && max == null)) {
+                        return Optional.empty();
                     }
+                    return Optional.of(new CommandWithFields(Command.FIND, keys, null, List.of(), false,
+                            new Query(field, hasValue ? value : null, nullToAbsent(min), nullToAbsent(max)), null, false));
+                }
+
+                // Scan top-level keys if no key is present.
+                if (option == Command.SCAN) {
+                    return Optional.of(new CommandWithFields(Command.SCAN, keys == null ? new String[0] : keys, null,
+                            List.of(), false, null, new ScanRange(start, end, prefix, cursor, limit, withValues), false));
                 }
 
-                commandWithFields = Optional.of(new CommandWithFields(option, keys, value));
-                break;
+                // Reset counters after reading them if requested.
+                if (option == Command.STATS) {
+                    return Optional.of(new CommandWithFields(Command.STATS, null, null, List.of(), false, null, null, reset));
+                }
+
+                return Optional.of(new CommandWithFields(option,
+                        option.inputElementsCount() >= 1 ? keys : null,
+                        option.inputElementsCount() >= 2 ? value : null));
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Read key, or array of keys.
+     *
+     * @param requestReader Reader positioned at key.
+     * @return Key(s), or null if a key is not a string, number or boolean.
+     * @throws IOException If key is not valid JSON.
+     */
+    private static String[] readKeys(JsonReader requestReader) throws IOException {
+        if (requestReader.peek() != JsonToken.BEGIN_ARRAY) {
+            String key = readString(requestReader);
+            return key == null ? null : new String[]{key};
+        }
+
+        List<String> keyList = new ArrayList<>();
+        requestReader.beginArray();
+        while (requestReader.hasNext()) {
+            String key = readString(requestReader);
+            if (key == null) {
+                return null;
+            }
+            keyList.add(key);
+        }
+        requestReader.endArray();
+        return keyList.toArray(String[]::new);
+    }
+
+    /**
+     * Split dot separated field path.
+     *
+     * @param field Field path, or null.
+     * @return Key(s) of field, or null if field is null.
+     */
+    private static String[] splitField(String field) {
+        return field == null ? null : field.split("\\.");
+    }
+
+    /**
+     * Treat a JSON null range bound as no bound.
+     *
+     * @param bound Range bound read from request.
+     * @return Bound, or null if there is none.
+     */
+    private static JsonElement nullToAbsent(JsonElement bound) {
+        return bound == null || bound.isJsonNull() ? null : bound;
+    }
+
+    /**
+     * Read a string, number or boolean as a string.
+     *
+     * @param requestReader Reader positioned at value.
+     * @return Value as a string, or null if value is not a string, number or boolean.
+     * @throws IOException If value is not valid JSON.
+     */
+    private static String readString(JsonReader requestReader) throws IOException {
+        return switch (requestReader.peek()) {
+            case STRING, NUMBER -> requestReader.nextString();
+            case BOOLEAN -> Boolean.toString(requestReader.nextBoolean());
+            default -> {
+                requestReader.skipValue();
+                yield null;
             }
+        };
+    }
+
+    /*
+     * Appends to the handler's response text, so writing a response allocates no buffers.
+     */
+    private final class ResponseTextWriter extends Writer {
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            responseText.append(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            responseText.append(string, offset, offset + length);
         }
 
-        return commandWithFields;
+        @Override
+        public void write(int character) {
+            responseText.append((char) character);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
     }
 }
@@ -0,0 +1,513 @@
+package server;
+
+import server.data.DataHandler;
+import server.util.DaemonThreadFactory;
+import server.util.Logger;
+import server.util.Metrics;
+import server.util.RequestTrace;
+import server.util.Settings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Non-blocking server engine. The calling thread accepts connections and hands them round-robin
+ * to a few event loop threads. Each event loop owns a Selector plus one direct read buffer and
+ * one direct write buffer shared by all its connections. Complete requests are handled on a
+ * worker pool, one request at a time per connection, so responses stay in request order.
+ * Supports both the framed and the original single request protocol (see Framing).
+ */
+public final class SelectorListener implements Server {
+    private static final SelectorListener instance = new SelectorListener();
+
+    private SelectorListener() {
+    }
+
+    public static SelectorListener getInstance() {
+        return instance;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int maxFrameBytes = Settings.getInt("maxFrameBytes", 64 * 1024 * 1024);
+
+    // Requests a connection may have waiting or unanswered before the server stops reading from it.
+    private final int maxPendingRequests = Math.max(1, Settings.getInt("maxPendingRequests", 1024));
+
+    // Shared with the blocking engine, see RequestHandler.
+    private final LongAdder connectionsOpened = Metrics.getInstance().counter("connections.opened");
+    private final LongAdder activeConnections = Metrics.getInstance().gauge("connections.active");
+    private final LongAdder activeHandlers = Metrics.getInstance().gauge("handlers.active");
+
+    private volatile boolean stopListenerFlag = false;
+    private volatile ServerSocketChannel serverChannel;
+    private Logger logger;
+    private ExecutorService workers;
+
+    /**
+     * Start listening on port.
+     *
+     * @param logger Logger to log to.
+     * @param port   Port to listen on.
+     */
+    @Override
+    public void startListening(Logger logger, int port) {
+        this.logger = logger;
+        DataHandler.getInstance().setLogger(logger);
+
+        workers = Executors.newFixedThreadPool(Math.max(1, Settings.getInt("workerThreads", Runtime.getRuntime().availableProcessors() * 2)),
+                new DaemonThreadFactory("request-worker"));
+        EventLoop[] eventLoops = new EventLoop[Math.max(1, Settings.getInt("eventLoops", 2))];
+
+        try (var serverChannel = ServerSocketChannel.open()) {
+            // Start event loops.
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(Selector.open());
+                new DaemonThreadFactory("event-loop").newThread(eventLoops[i]).start();
+            }
+
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), Settings.getInt("backlog", 128));
+            this.serverChannel = serverChannel;
+
+            logger.console("Server started!");
+
+            // Accept connections and spread them across event loops. Stopping closes server channel, which ends accept.
+            int next = 0;
+            while (!stopListenerFlag) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    if (stopListenerFlag) {
+                        break;
+                    }
+                    throw e;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            String message = "Unexpected error while listening. " + e;
+            logger.error(message);
+            throw new RuntimeException(message);
+        } finally {
+            // Let requests in progress finish, then stop event loops.
+            workers.shutdown();
+            try {
+                workers.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (EventLoop eventLoop : eventLoops) {
+                if (eventLoop != null) {
+                    eventLoop.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop listening on port.
+     */
+    @Override
+    public void stopListening() {
+        stopListenerFlag = true;
+
+        // Wake up accept.
+        ServerSocketChannel serverChannel = this.serverChannel;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Run task on event loop thread.
+         *
+         * @param task Task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    var connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connectionsOpened.increment();
+                    activeConnections.increment();
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+
+                    // Run tasks posted by acceptor and workers.
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        var connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                logger.error("Unexpected error in event loop. " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private enum Protocol {
+            UNKNOWN,
+            FRAMED,
+            SINGLE
+        }
+
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final RequestHandler requestHandler;
+        private SelectionKey key;
+
+        // Bytes received but not yet parsed into requests. Used by event loop thread only.
+        private byte[] inbound = new byte[256];
+        private int inboundCount;
+        private Protocol protocol = Protocol.UNKNOWN;
+
+        /**
+         * Request waiting for a worker, with when it was received if requests are traced.
+         */
+        private record Received(String request, long receivedNanos) {
+        }
+
+        // Requests waiting for a worker, and responses waiting to be written.
+        private final Queue<Received> requests = new ConcurrentLinkedQueue<>();
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean processing = new AtomicBoolean(false);
+
+        // Requests received whose responses are not yet written.
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean closeAfterWrite = false;
+        private volatile boolean stopAfterWrite = false;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+            this.requestHandler = new RequestHandler(SelectorListener.this, logger, null);
+        }
+
+        /**
+         * Read available bytes and queue any complete requests. Stops reading while too many
+         * requests are pending, so a client that keeps pipelining waits in its socket buffer
+         * instead of growing the server's queues.
+         *
+         * @throws IOException If channel could not be read or client sent an invalid frame.
+         */
+        void read() throws IOException {
+            ByteBuffer buffer = eventLoop.readBuffer;
+            int count = 0;
+
+            // Parse after each read, so received bytes beyond one frame are never buffered.
+            while (pending.get() < maxPendingRequests && (count = channel.read(buffer.clear())) > 0) {
+                buffer.flip();
+                ensureInbound(count);
+                buffer.get(inbound, inboundCount, count);
+                inboundCount += count;
+                parseRequests();
+            }
+
+            // Client closed its side.
+            if (count < 0) {
+                close();
+                return;
+            }
+            updateReadInterest();
+        }
+
+        /**
+         * Pause reading while too many requests are pending, and resume once responses are written.
+         */
+        private void updateReadInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(pending.get() < maxPendingRequests ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+
+        /**
+         * Write queued responses until done or socket buffer is full.
+         *
+         * @throws IOException If channel could not be written.
+         */
+        void write() throws IOException {
+            ByteBuffer buffer = eventLoop.writeBuffer;
+            while (!responses.isEmpty()) {
+                // Copy as many queued bytes as fit into direct buffer.
+                buffer.clear();
+                for (ByteBuffer response : responses) {
+                    if (!buffer.hasRemaining()) {
+                        break;
+                    }
+                    ByteBuffer part = response.duplicate();
+                    if (part.remaining() > buffer.remaining()) {
+                        part.limit(part.position() + buffer.remaining());
+                    }
+                    buffer.put(part);
+                }
+                buffer.flip();
+
+                // Consume what the socket took.
+                int written = channel.write(buffer);
+                while (written > 0) {
+                    ByteBuffer head = responses.peek();
+                    int taken = Math.min(head.remaining(), written);
+                    head.position(head.position() + taken);
+                    written -= taken;
+                    if (!head.hasRemaining()) {
+                        responses.poll();
+                        pending.decrementAndGet();
+                    }
+                }
+                if (buffer.hasRemaining()) {
+                    // Socket buffer is full. Wait until writable.
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    updateReadInterest();
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            // Pick up requests left in the buffer at the pending limit.
+            if (inboundCount > 0 && pending.get() < maxPendingRequests) {
+                parseRequests();
+            }
+            updateReadInterest();
+
+            if (closeAfterWrite && !processing.get() && requests.isEmpty()) {
+                close();
+                if (stopAfterWrite) {
+                    stopListening();
+                }
+            }
+        }
+
+        void close() {
+            if (channel.isOpen()) {
+                activeConnections.decrement();
+            }
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        private void ensureInbound(int additional) {
+            if (inboundCount + additional > inbound.length) {
+                inbound = Arrays.copyOf(inbound, Math.max(inbound.length * 2, inboundCount + additional));
+            }
+        }
+
+        /**
+         * Split received bytes into requests and hand them to a worker.
+         *
+         * @throws IOException If client sent an invalid frame.
+         */
+        private void parseRequests() throws IOException {
+            int position = 0;
+
+            // Detect protocol from first bytes.
+            if (protocol == Protocol.UNKNOWN) {
+                if (inboundCount < Framing.PREAMBLE.length) {
+                    return;
+                }
+                if (Arrays.equals(inbound, 0, Framing.PREAMBLE.length, Framing.PREAMBLE, 0, Framing.PREAMBLE.length)) {
+                    protocol = Protocol.FRAMED;
+                    position = Framing.PREAMBLE.length;
+                } else {
+                    protocol = Protocol.SINGLE;
+                }
+            }
+
+            if (protocol == Protocol.FRAMED) {
+                // Leave frames beyond the pending limit in the buffer until responses are written.
+                while (inboundCount - position >= 4 && pending.get() < maxPendingRequests) {
+                    int length = ByteBuffer.wrap(inbound, position, 4).getInt();
+                    if (length < 0 || length > maxFrameBytes) {
+                        throw new IOException(String.format("Frame length %d is not between 0 and %d.", length, maxFrameBytes));
+                    }
+                    if (inboundCount - position - 4 < length) {
+                        break;
+                    }
+                    requests.add(received(new String(inbound, position + 4, length, StandardCharsets.UTF_8)));
+                    pending.incrementAndGet();
+                    position += 4 + length;
+                }
+            } else if (!closeAfterWrite && inboundCount >= 2) {
+                // Single request protocol: one writeUTF message per connection.
+                int length = ((inbound[0] & 0xff) << 8) | (inbound[1] & 0xff);
+                if (inboundCount >= 2 + length) {
+                    var inputStream = new DataInputStream(new ByteArrayInputStream(inbound, 0, 2 + length));
+                    requests.add(received(inputStream.readUTF()));
+                    pending.incrementAndGet();
+                    closeAfterWrite = true;
+                    position = inboundCount;
+                }
+            }
+
+            // Drop parsed bytes.
+            if (position > 0) {
+                System.arraycopy(inbound, position, inbound, 0, inboundCount - position);
+                inboundCount -= position;
+            }
+
+            dispatch();
+        }
+
+        private static Received received(String request) {
+            return new Received(request, RequestTrace.enabled() ? System.nanoTime() : 0);
+        }
+
+        /**
+         * Start a worker on queued requests unless one is already running for this connection.
+         */
+        private void dispatch() {
+            if (!requests.isEmpty() && processing.compareAndSet(false, true)) {
+                workers.execute(this::process);
+            }
+        }
+
+        /**
+         * Handle queued requests in order. Runs on a worker thread. A trace ends once the response
+         * is queued, since the event loop writes it later together with other responses.
+         */
+        private void process() {
+            activeHandlers.increment();
+            try {
+                Received received;
+                while ((received = requests.poll()) != null) {
+                    RequestTrace trace = RequestTrace.begin(received.receivedNanos());
+                    if (trace != null) {
+                        trace.add(RequestTrace.Phase.QUEUE, System.nanoTime() - received.receivedNanos());
+                    }
+                    String response = requestHandler.handleRequest(received.request());
+                    long writeStart = trace != null ? System.nanoTime() : 0;
+                    responses.add(ByteBuffer.wrap(encode(response)));
+                    if (trace != null) {
+                        trace.add(RequestTrace.Phase.WRITE, System.nanoTime() - writeStart);
+                        trace.end(received.request());
+                    }
+                    if (requestHandler.stopRequested()) {
+                        closeAfterWrite = true;
+                        stopAfterWrite = true;
+                        requests.clear();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.console("Unexpected error handling request. " + e, Logger.Severity.ERROR);
+                closeAfterWrite = true;
+            } finally {
+                activeHandlers.decrement();
+                processing.set(false);
+            }
+
+            // Write responses and pick up requests that arrived meanwhile on event loop thread.
+            eventLoop.execute(() -> {
+                if (!key.isValid()) {
+                    return;
+                }
+                try {
+                    write();
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                dispatch();
+            });
+        }
+
+        private byte[] encode(String response) throws IOException {
+            if (protocol == Protocol.FRAMED) {
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                return ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes).array();
+            }
+            var bytes = new ByteArrayOutputStream(response.length() + 2);
+            new DataOutputStream(bytes).writeUTF(response);
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
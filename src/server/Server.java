@@ -0,0 +1,18 @@
+package server;
+
+import server.util.Logger;
+
+public interface Server {
+    /**
+     * Start listening on port. Returns once listening has stopped.
+     *
+     * @param logger Logger to log to.
+     * @param port   Port to listen on.
+     */
+    void startListening(Logger logger, int port);
+
+    /**
+     * Stop listening on port.
+     */
+    void stopListening();
+}
@@ -0,0 +1,15 @@
+package server.data;
+
+import com.google.gson.JsonElement;
+
+public record BatchOperation(
+        Type type,
+        String[] keys,
+        JsonElement value
+) {
+    public enum Type {
+        SET,
+        GET,
+        DELETE
+    }
+}
@@ -0,0 +1,397 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Binary encoding of a JSON tree that can be read in place. A file starts with the magic bytes
+ * "JDBB" and a version byte, followed by the root object. Each value starts with a tag byte:
+ *
+ *   null, false, true   tag only
+ *   number, string      tag, int length, UTF-8 text (numbers keep their JSON text)
+ *   array               tag, int size, int count, count x int element offset, elements
+ *   object              tag, int size, int count, count x (int key offset, int value offset)
+ *                       in member order, count x int member number in key order, keys and values
+ *
+ * Sizes cover the whole value and offsets are relative to the start of the value, so a value
+ * can be skipped or copied as is, and a key is found by binary search without decoding siblings.
+ * Ints are big-endian.
+ */
+public final class BinaryFormat {
+    static final byte[] MAGIC = {'J', 'D', 'B', 'B', 1};
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte NUMBER = 3;
+    private static final byte STRING = 4;
+    private static final byte ARRAY = 5;
+    private static final byte OBJECT = 6;
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * Encode data as a binary file.
+     *
+     * @param data Data to encode.
+     * @return Binary file contents.
+     */
+    public static byte[] encode(JsonObject data) {
+        Map<String, Object> members = new LinkedHashMap<>();
+        data.entrySet().forEach(entry -> members.put(entry.getKey(), entry.getValue()));
+        return encode(members);
+    }
+
+    /**
+     * Decode a binary file.
+     *
+     * @param bytes Binary file contents.
+     * @return Data held in file.
+     * @throws IllegalArgumentException If contents are not in binary format.
+     */
+    public static JsonObject decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        checkMagic(buffer);
+        return (JsonObject) decode(buffer, MAGIC.length);
+    }
+
+    /**
+     * Convert a data file between JSON and binary format.
+     *
+     * @param from     Path of data file to read.
+     * @param to       Path of data file to write.
+     * @param toBinary Whether to convert from JSON to binary rather than from binary to JSON.
+     * @throws IOException              If a data file could not be read or written.
+     * @throws IllegalArgumentException If data file to read is not in binary format.
+     */
+    public static void convert(Path from, Path to, boolean toBinary) throws IOException {
+        if (toBinary) {
+            SnapshotFile.writeUncompressed(to, encode(SnapshotFile.parse(SnapshotFile.read(from), new Gson())));
+
+            // Server loads the newest generation, so drop any it wrote earlier.
+            SnapshotFile.deleteGenerations(to, to);
+        } else {
+            Path latest = SnapshotFile.latestGeneration(from);
+            SnapshotFile.write(to, new Gson().toJson(decode(Files.readAllBytes(latest))).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Import a JSON data file into a binary data file, or export a binary data file as JSON.
+     *
+     * @param args "import" or "export", path of data file to read and path of data file to write.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("Usage: java server.data.BinaryFormat import|export <from> <to>");
+            return;
+        }
+        convert(Paths.get(args[1]), Paths.get(args[2]), args[0].equals("import"));
+    }
+
+    /**
+     * Encode data as a binary file. Members may be JsonElements, or ByteBuffers holding an
+     * already encoded value between position and limit, which are copied without decoding.
+     *
+     * @param members Top-level members in order.
+     * @return Binary file contents.
+     */
+    static byte[] encode(Map<String, Object> members) {
+        var encoder = new Encoder();
+        ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + encoder.objectSize(members));
+        buffer.put(MAGIC);
+        encoder.writeObject(members, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Check buffer starts with magic bytes.
+     *
+     * @param buffer Buffer holding a binary file.
+     * @throws IllegalArgumentException If buffer is not in binary format.
+     */
+    static void checkMagic(ByteBuffer buffer) {
+        if (buffer.limit() < MAGIC.length + 1) {
+            throw new IllegalArgumentException("Data file is too short.");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IllegalArgumentException("Data file is not in binary format.");
+            }
+        }
+        if (buffer.get(MAGIC.length) != OBJECT) {
+            throw new IllegalArgumentException("Data file root is not an object.");
+        }
+    }
+
+    /**
+     * Decode value.
+     *
+     * @param buffer   Buffer holding value.
+     * @param position Position of value.
+     * @return Decoded value.
+     */
+    static JsonElement decode(ByteBuffer buffer, int position) {
+        return switch (buffer.get(position)) {
+            case NULL -> JsonNull.INSTANCE;
+            case FALSE -> new JsonPrimitive(false);
+            case TRUE -> new JsonPrimitive(true);
+            case NUMBER -> JsonParser.parseString(readText(buffer, position + 1));
+            case STRING -> new JsonPrimitive(readText(buffer, position + 1));
+            case ARRAY -> {
+                int count = buffer.getInt(position + 5);
+                JsonArray array = new JsonArray(count);
+                for (int i = 0; i < count; i++) {
+                    array.add(decode(buffer, position + buffer.getInt(position + 9 + i * 4)));
+                }
+                yield array;
+            }
+            case OBJECT -> {
+                int count = buffer.getInt(position + 5);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < count; i++) {
+                    int entry = position + 9 + i * 8;
+                    object.add(readText(buffer, position + buffer.getInt(entry)), decode(buffer, position + buffer.getInt(entry + 4)));
+                }
+                yield object;
+            }
+            default -> throw new IllegalArgumentException("Unknown tag at position " + position + ".");
+        };
+    }
+
+    /**
+     * Find value below an object by key(s), reading only the keys compared along the way.
+     *
+     * @param buffer   Buffer holding object.
+     * @param position Position of object.
+     * @param keys     Key(s) to follow.
+     * @param from     Index of first key to follow.
+     * @return Position of value, or -1 if not found.
+     */
+    static int find(ByteBuffer buffer, int position, String[] keys, int from) {
+        for (int k = from; k < keys.length; k++) {
+            if (buffer.get(position) != OBJECT) {
+                return -1;
+            }
+
+            // Binary search members in key order.
+            int count = buffer.getInt(position + 5);
+            int sortedTable = position + 9 + count * 8;
+            int low = 0;
+            int high = count - 1;
+            int found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int entry = position + 9 + buffer.getInt(sortedTable + middle * 4) * 8;
+                int comparison = readText(buffer, position + buffer.getInt(entry)).compareTo(keys[k]);
+                if (comparison == 0) {
+                    found = position + buffer.getInt(entry + 4);
+                    break;
+                }
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (found < 0) {
+                return -1;
+            }
+            position = found;
+        }
+        return position;
+    }
+
+    /**
+     * Get top-level members of a binary file.
+     *
+     * @param buffer Buffer holding binary file.
+     * @return Position of each top-level value by key, in member order.
+     */
+    static Map<String, Integer> members(ByteBuffer buffer) {
+        int position = MAGIC.length;
+        int count = buffer.getInt(position + 5);
+        Map<String, Integer> members = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int entry = position + 9 + i * 8;
+            members.put(readText(buffer, position + buffer.getInt(entry)), position + buffer.getInt(entry + 4));
+        }
+        return members;
+    }
+
+    /**
+     * Get encoded value as a buffer for copying.
+     *
+     * @param buffer   Buffer holding value.
+     * @param position Position of value.
+     * @return Buffer with value between position and limit.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int position) {
+        int size = switch (buffer.get(position)) {
+            case NULL, FALSE, TRUE -> 1;
+            case NUMBER, STRING -> 5 + buffer.getInt(position + 1);
+            default -> buffer.getInt(position + 1);
+        };
+        return buffer.duplicate().limit(position + size).position(position);
+    }
+
+    private static String readText(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        byte[] bytes = new byte[length];
+        buffer.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Sizes containers once before writing, so each value is written straight to its final place.
+     */
+    private static final class Encoder {
+        private final Map<Object, Integer> sizes = new IdentityHashMap<>();
+
+        int size(Object value) {
+            if (value instanceof ByteBuffer raw) {
+                return raw.remaining();
+            }
+            JsonElement element = (JsonElement) value;
+            if (element.isJsonNull()) {
+                return 1;
+            }
+            if (element.isJsonPrimitive()) {
+                JsonPrimitive primitive = element.getAsJsonPrimitive();
+                return primitive.isBoolean() ? 1 : 5 + utf8Length(primitive.getAsString());
+            }
+            Integer size = sizes.get(element);
+            if (size != null) {
+                return size;
+            }
+            if (element.isJsonArray()) {
+                size = 9;
+                for (JsonElement item : element.getAsJsonArray()) {
+                    size += 4 + size(item);
+                }
+            } else {
+                Map<String, Object> members = new LinkedHashMap<>();
+                element.getAsJsonObject().entrySet().forEach(entry -> members.put(entry.getKey(), entry.getValue()));
+                size = objectSize(members);
+            }
+            sizes.put(element, size);
+            return size;
+        }
+
+        int objectSize(Map<String, Object> members) {
+            int size = 9 + members.size() * 12;
+            for (Map.Entry<String, Object> member : members.entrySet()) {
+                size += 4 + utf8Length(member.getKey()) + size(member.getValue());
+            }
+            return size;
+        }
+
+        void write(Object value, ByteBuffer buffer) {
+            if (value instanceof ByteBuffer raw) {
+                buffer.put(raw.duplicate());
+                return;
+            }
+            JsonElement element = (JsonElement) value;
+            if (element.isJsonNull()) {
+                buffer.put(NULL);
+            } else if (element.isJsonPrimitive()) {
+                JsonPrimitive primitive = element.getAsJsonPrimitive();
+                if (primitive.isBoolean()) {
+                    buffer.put(primitive.getAsBoolean() ? TRUE : FALSE);
+                } else {
+                    buffer.put(primitive.isNumber() ? NUMBER : STRING);
+                    writeText(primitive.getAsString(), buffer);
+                }
+            } else if (element.isJsonArray()) {
+                JsonArray array = element.getAsJsonArray();
+                int start = buffer.position();
+                buffer.put(ARRAY).putInt(size(element)).putInt(array.size());
+                int offset = 9 + array.size() * 4;
+                for (JsonElement item : array) {
+                    buffer.putInt(offset);
+                    offset += size(item);
+                }
+                array.forEach(item -> write(item, buffer));
+                assert buffer.position() - start == size(element);
+            } else {
+                Map<String, Object> members = new LinkedHashMap<>();
+                element.getAsJsonObject().entrySet().forEach(entry -> members.put(entry.getKey(), entry.getValue()));
+                writeObject(members, buffer);
+            }
+        }
+
+        void writeObject(Map<String, Object> members, ByteBuffer buffer) {
+            int count = members.size();
+            buffer.put(OBJECT).putInt(objectSize(members)).putInt(count);
+
+            // Member table in member order.
+            List<String> keys = new ArrayList<>(members.keySet());
+            int offset = 9 + count * 12;
+            for (String key : keys) {
+                buffer.putInt(offset);
+                offset += 4 + utf8Length(key);
+                buffer.putInt(offset);
+                offset += size(members.get(key));
+            }
+
+            // Member numbers in key order.
+            List<Integer> order = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                order.add(i);
+            }
+            order.sort(Comparator.comparing(keys::get));
+            order.forEach(buffer::putInt);
+
+            for (String key : keys) {
+                writeText(key, buffer);
+                write(members.get(key), buffer);
+            }
+        }
+
+        private static void writeText(String text, ByteBuffer buffer) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length).put(bytes);
+        }
+
+        private static int utf8Length(String text) {
+            int length = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char character = text.charAt(i);
+                if (character < 0x80) {
+                    length += 1;
+                } else if (character < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(character) && i + 1 < text.length()
+                        && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else if (Character.isSurrogate(character)) {
+                    // Unpaired surrogate, which String.getBytes writes as '?'.
+                    length += 1;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package server.data;
+
+import com.google.gson.JsonObject;
+import server.util.Settings;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Optional gzip compression of JSON data files. Compressed files are recognized by the gzip magic
+ * bytes when read, so compression can be switched on or off without converting existing files.
+ * Binary data files are never compressed, since they are read in place through a memory map.
+ */
+final class Compression {
+    private static final boolean enabled = Settings.getBoolean("compress", false);
+    private static final int level = Math.max(-1, Math.min(9, Settings.getInt("compressionLevel", 6)));
+    private static final int blockSize = Math.max(512, Settings.getInt("compressionBlockSize", 65536));
+
+    // Data file bytes before and after compression, and time spent compressing and decompressing.
+    private static final LongAdder rawBytes = new LongAdder();
+    private static final LongAdder storedBytes = new LongAdder();
+    private static final LongAdder compressNanos = new LongAdder();
+    private static final LongAdder decompressNanos = new LongAdder();
+
+    private Compression() {
+    }
+
+    /**
+     * Compress data file contents if compression is enabled.
+     *
+     * @param bytes Data file contents.
+     * @return Contents to store.
+     */
+    static byte[] compress(byte[] bytes) {
+        if (!enabled) {
+            return bytes;
+        }
+
+        long start = System.nanoTime();
+        var compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (var gzip = new LeveledGZIPOutputStream(compressed, level, blockSize)) {
+            // Hand the deflater one block at a time.
+            for (int offset = 0; offset < bytes.length; offset += blockSize) {
+                gzip.write(bytes, offset, Math.min(blockSize, bytes.length - offset));
+            }
+        } catch (IOException e) {
+            // Not thrown by in memory streams.
+            throw new IllegalStateException(e);
+        }
+        byte[] stored = compressed.toByteArray();
+        compressNanos.add(System.nanoTime() - start);
+        rawBytes.add(bytes.length);
+        storedBytes.add(stored.length);
+        return stored;
+    }
+
+    /**
+     * Decompress stored data file contents if they are compressed.
+     *
+     * @param bytes Stored contents.
+     * @return Data file contents.
+     * @throws IOException If compressed contents are corrupt.
+     */
+    static byte[] decompress(byte[] bytes) throws IOException {
+        if (bytes.length < 2 || (bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b) {
+            return bytes;
+        }
+
+        long start = System.nanoTime();
+        byte[] decompressed;
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes), blockSize)) {
+            decompressed = gzip.readAllBytes();
+        }
+        decompressNanos.add(System.nanoTime() - start);
+        return decompressed;
+    }
+
+    /**
+     * Get compression counters.
+     *
+     * @return Object with "rawBytes" and "storedBytes" written, "savedPercent", and
+     * "compressMillis" and "decompressMillis" spent.
+     */
+    static JsonObject stats() {
+        long raw = rawBytes.sum();
+        long stored = storedBytes.sum();
+        JsonObject stats = new JsonObject();
+        stats.addProperty("enabled", enabled);
+        stats.addProperty("rawBytes", raw);
+        stats.addProperty("storedBytes", stored);
+        stats.addProperty("savedPercent", raw == 0 ? 0 : Math.round(1000.0 * (raw - stored) / raw) / 10.0);
+        stats.addProperty("compressMillis", compressNanos.sum() / 1_000_000);
+        stats.addProperty("decompressMillis", decompressNanos.sum() / 1_000_000);
+        return stats;
+    }
+
+    /*
+     * GZIPOutputStream with a chosen compression level.
+     */
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(ByteArrayOutputStream out, int level, int blockSize) throws IOException {
+            super(out, blockSize);
+            def.setLevel(level);
+        }
+    }
+}
@@ -1,34 +1,107 @@
 package server.data;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import com.google.gson.reflect.TypeToken;
 import server.util.JsonTools;
+import server.util.LatencyRecorder;
 import server.util.Logger;
+import server.util.Metrics;
+import server.util.RequestTrace;
+import server.util.Settings;
+import server.util.SlowLog;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Optional;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public final class DataHandler {
+    // Stands in for a top-level element still in the mapped data file. Declared before instance so it is set when data loads.
+    private static final JsonElement UNLOADED = new JsonPrimitive("(not loaded)");
     private static final DataHandler instance = new DataHandler();
 
     private DataHandler() {
-        // Initialize data file if not present.
+        Persistence.Type persistenceType = Settings.getEnum("persistence", Persistence.Type.SNAPSHOT);
+        persistence = switch (persistenceType) {
+            case SNAPSHOT -> new SnapshotPersistence(dataPath, flushPolicy, flushIntervalMillis, false,
+                    () -> snapshot(null).getBytes(StandardCharsets.UTF_8));
+            case LOG -> new LogPersistence(dataPath, flushPolicy, flushIntervalMillis,
+                    Settings.getLong("logCompactBytes", 16L * 1024 * 1024), this::snapshot);
+            case BINARY -> new SnapshotPersistence(binaryDataPath, flushPolicy, flushIntervalMillis, true,
+                    this::binarySnapshot);
+            case PARTITIONED -> new PartitionedPersistence(dataPath, Settings.getInt("partitions", 16),
+                    Settings.getInt("loadThreads", Runtime.getRuntime().availableProcessors()),
+                    flushPolicy, flushIntervalMillis, this::partitionSnapshot);
+        };
+
+        // Load data into memory once. Requests are served from memory afterwards.
         try {
-            if (Files.notExists(dataPath)) {
-                Files.write(dataPath, "{}".getBytes());
+            // Start binary data file from JSON data file if there is one.
+            if (persistenceType == Persistence.Type.BINARY && SnapshotFile.generations(binaryDataPath).isEmpty()
+                    && Files.exists(dataPath)) {
+                BinaryFormat.convert(dataPath, binaryDataPath, true);
+            }
+            persistence.load().entrySet().forEach(entry -> data.put(entry.getKey(), entry.getValue()));
+
+            // Leave top-level elements of a mapped data file in place until they are used.
+            mappedData = persistence.mappedData();
+            if (mappedData != null) {
+                BinaryFormat.members(mappedData).forEach((key, position) -> {
+                    data.put(key, UNLOADED);
+                    mappedPositions.put(key, position);
+                });
+            }
+        } catch (IOException | IllegalArgumentException | com.google.gson.JsonParseException e) {
+            loadError = e.toString();
+        }
+        fieldIndexes.values().forEach(indexes -> indexes.forEach(index -> index.rebuild(topLevel(index.collection()))));
+
+        // Stream changes to followers, or follow a primary, if requested.
+        switch (Settings.getEnum("replicationRole", ReplicationRole.NONE)) {
+            case PRIMARY -> {
+                replicationPrimary = new ReplicationPrimary(Settings.getInt("replicationPort", 20124),
+                        Settings.getInt("replicationBacklog", 100_000), this::snapshot);
+                replicationFollower = null;
             }
-        } catch (IOException ignored) {
+            case FOLLOWER -> {
+                replicationPrimary = null;
+                replicationFollower = new ReplicationFollower(Settings.getString("primary", "127.0.0.1:20124"),
+                        this::apply, this::replaceAll);
+            }
+            default -> {
+                replicationPrimary = null;
+                replicationFollower = null;
+            }
+        }
+
+        // Start batching concurrent changes if requested.
+        if (Settings.getBoolean("groupCommit", false)) {
+            groupCommitter = new GroupCommitter(this::apply,
+                    Settings.getInt("groupCommitMaxBatch", 256),
+                    Settings.getLong("groupCommitMaxWaitMicros", 500));
+        } else {
+            groupCommitter = null;
         }
     }
 
@@ -45,6 +118,15 @@ public final class DataHandler {
      */
     public void setLogger(Logger logger) {
         this.logger = logger;
+        JsonTools.setLogger(logger);
+        SlowLog.getInstance().setLogger(logger);
+        persistence.setLogger(logger);
+        if (replicationPrimary != null) {
+            replicationPrimary.setLogger(logger);
+        }
+        if (replicationFollower != null) {
+            replicationFollower.setLogger(logger);
+        }
     }
 
     public enum Result {
@@ -52,14 +134,101 @@ public final class DataHandler {
         ERROR
     }
 
+    /**
+     * Part this server plays in replication.
+     */
+    public enum ReplicationRole {
+        // No replication.
+        NONE,
+        // Stream changes to followers.
+        PRIMARY,
+        // Apply changes streamed by a primary and reject changes from clients.
+        FOLLOWER
+    }
+
+    /**
+     * When changes to the in memory data are written to the data file.
+     */
+    public enum FlushPolicy {
+        // Write data file before a change is acknowledged.
+        ALWAYS,
+        // Write data file in the background at most once per flush interval.
+        INTERVAL,
+        // Write data file only when data handler is closed.
+        SHUTDOWN
+    }
+
 //    private final Path dataPath = Paths.get(System.getProperty("user.dir") + "/JSON Database/task/src/server/data/db.json"); // For development.
     private final Path dataPath = Paths.get(System.getProperty("user.dir") + "/src/server/data/db.json"); // For automated tests.
-    private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock(true);
-    private final Lock readLock = readWriteLock.readLock();
-    private final Lock writeLock = readWriteLock.writeLock();
+    private final Path binaryDataPath = dataPath.resolveSibling("db.jdb");
+    private final PathLocks locks = new PathLocks(Settings.getInt("lockStripes", 64));
+    private final PathIndex pathIndex = new PathIndex(locks, Settings.getInt("pathIndexSize", 65536));
+
+    private final ResponseCache responseCache = new ResponseCache(locks,
+            Settings.getInt("responseCacheSize", 8192), Settings.getInt("responseCacheMaxChars", 65536));
+
+    private final ScanIndex scanIndex = new ScanIndex(Settings.getInt("scanIndexSize", 4096));
+    private final int scanMaxLimit = Settings.getInt("scanMaxLimit", 1000);
+
+    // Secondary indexes by collection. Each index is guarded by the lock stripe of its collection.
+    private final Map<String, List<FieldIndex>> fieldIndexes = parseFieldIndexes(Settings.getString("indexes", ""));
+
+    // Writers publish changed copies of top-level elements instead of changing them in place, so readers need no lock.
+    private final boolean copyOnWrite = Settings.getBoolean("copyOnWrite", false);
 
-    private final Type dataType = new TypeToken<HashMap<String, String>>() {
-    }.getType();
+    private final Gson gson = new Gson();
+
+    // Time spent serializing values for gets the response cache could not answer.
+    private final boolean timed = Metrics.getInstance().enabled();
+    private final LatencyRecorder serializeLatency = Metrics.getInstance().latency("serialize");
+
+    private final FlushPolicy flushPolicy = Settings.getEnum("flushPolicy", FlushPolicy.ALWAYS);
+    private final long flushIntervalMillis = Math.max(1, Settings.getLong("flushIntervalMillis", 1000));
+    private final Persistence persistence;
+    private final GroupCommitter groupCommitter;
+    private final ReplicationPrimary replicationPrimary;
+    private final ReplicationFollower replicationFollower;
+
+    // Top-level keys and their elements. Each top-level element is guarded by its lock stripe.
+    private final ConcurrentNavigableMap<String, JsonElement> data = new ConcurrentSkipListMap<>();
+    private String loadError;
+
+    private static final String READ_ONLY_ERROR = "Read-only follower.";
+
+    // Mapped data file and positions there of top-level elements not decoded yet.
+    private ByteBuffer mappedData;
+    private final Map<String, Integer> mappedPositions = new HashMap<>();
+
+    /**
+     * Start replication if this server is a primary or follower.
+     *
+     * @throws IOException If primary could not listen for followers.
+     */
+    public void startReplication() throws IOException {
+        if (replicationPrimary != null) {
+            replicationPrimary.start();
+        }
+        if (replicationFollower != null) {
+            replicationFollower.start();
+        }
+    }
+
+    /**
+     * Get replication state.
+     *
+     * @return Object with "role" and, for a primary or follower, its position in the change stream.
+     */
+    public JsonObject replicationStatus() {
+        if (replicationPrimary != null) {
+            return replicationPrimary.status();
+        }
+        if (replicationFollower != null) {
+            return replicationFollower.status();
+        }
+        JsonObject status = new JsonObject();
+        status.addProperty("role", "none");
+        return status;
+    }
 
     /**
      * Set element with key(s) to value.
@@ -69,91 +238,234 @@ public final class DataHandler {
      * @return DataHandlerResult.
      */
     public DataHandlerResult set(String[] keys, JsonElement value) {
-        DataHandlerResult result;
+        return commit(Mutation.set(keys, value));
+    }
 
-        writeLock.lock();
+    /**
+     * Get value for element with key(s).
+     *
+     * @param keys Key(s) of element to get.
+     * @return DataHandlerResult with value for element if found.
+     */
+    public DataHandlerResult get(String[] keys) {
+        // Exit if data could not be loaded.
+        if (loadError != null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(loadError));
+        }
+
+        // Published elements never change with copy on write, so no lock or copy is needed.
+        if (copyOnWrite) {
+            return getElement(keys, false);
+        }
+
+        int stripe = locks.stripe(keys);
+        locks.lockRead(stripe);
         try {
-            // Read data from file.
-            String dataAsString = new String(Files.readAllBytes(dataPath));
+            // Copy element since in memory data may change after read lock is released.
+            return getElement(keys, true);
+        } finally {
+            locks.unlockRead(stripe);
+        }
+    }
 
-            // Deserialize data to JsonObject.
-            try {
-                JsonElement jsonObject = new Gson().fromJson(dataAsString, JsonElement.class);
-
-                JsonTools.setLogger(logger);
-                logger.debug("Before update with " + value);
-                JsonTools.logJson((JsonObject) jsonObject);
-
-                // Update element in JsonObject.
-                String editResult = JsonTools.updateElement(keys, value, (JsonObject) jsonObject);
-                if (editResult != null) {
-                    result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(editResult));
-                } else {
-                    // Write data to file.
-                    try {
-                        dataAsString = new Gson().toJson(jsonObject);
-                        Files.write(dataPath, dataAsString.getBytes());
-                        result = new DataHandlerResult(Result.OK, null);
-
-                        logger.debug("After update with " + value);
-                        JsonTools.logJson((JsonObject) jsonObject);
-                    } catch (IOException e) {
-                        result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
+    /**
+     * Get value for element with key(s), serialized as JSON. Repeated gets of a key path are
+     * served from the response cache until a change touches the path.
+     *
+     * @param keys Key(s) of element to get.
+     * @return DataHandlerResult with serialized value as a string if found.
+     */
+    public DataHandlerResult getSerialized(String[] keys) {
+        // Exit if data could not be loaded.
+        if (loadError != null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(loadError));
+        }
+
+        String cachedValue = responseCache.get(keys);
+        if (cachedValue != null) {
+            return new DataHandlerResult(Result.OK, new JsonPrimitive(cachedValue));
+        }
+
+        // Serialize under the read lock instead of copying, unless published elements never change.
+        long version = responseCache.version(keys);
+        DataHandlerResult result;
+        int stripe = locks.stripe(keys);
+        if (!copyOnWrite) {
+            locks.lockRead(stripe);
+        }
+        try {
+            result = getElement(keys, false);
+            if (result.result() == Result.OK) {
+                RequestTrace trace = RequestTrace.current();
+                long start = timed || trace != null ? System.nanoTime() : 0;
+                result = new DataHandlerResult(Result.OK, new JsonPrimitive(gson.toJson(result.value())));
+                if (timed || trace != null) {
+                    long nanos = System.nanoTime() - start;
+                    if (timed) {
+                        serializeLatency.record(nanos);
+                    }
+                    if (trace != null) {
+                        trace.add(RequestTrace.Phase.SERIALIZE, nanos);
                     }
                 }
-            } catch (com.google.gson.JsonParseException e) {
-                result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
             }
-        } catch (IOException e) {
-            result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
         } finally {
-            writeLock.unlock();
+            if (!copyOnWrite) {
+                locks.unlockRead(stripe);
+            }
         }
 
+        if (result.result() == Result.OK) {
+            responseCache.put(keys, result.value().getAsString(), version);
+        }
         return result;
     }
 
     /**
-     * Get value for element with key(s).
+     * Get response cache counters.
      *
-     * @param keys Key(s) of element to get.
-     * @return DataHandlerResult with value for element if found.
+     * @return Object with "hits", "misses", "evictions" and "size".
      */
-    public DataHandlerResult get(String[] keys) {
-        DataHandlerResult result;
+    public JsonObject responseCacheStats() {
+        return responseCache.stats();
+    }
 
-        readLock.lock();
-        try {
-            // Read data from file.
-            String dataAsString = new String(Files.readAllBytes(dataPath));
+    /**
+     * Get data file compression counters.
+     *
+     * @return Object with bytes written before and after compression and time spent.
+     */
+    public JsonObject compressionStats() {
+        return Compression.stats();
+    }
 
-            // Deserialize data to JsonObject.
-            try {
-                JsonElement jsonObject = new Gson().fromJson(dataAsString, JsonElement.class);
-
-                JsonTools.setLogger(logger);
-                StringBuilder keyList = new StringBuilder();
-                Arrays.stream(keys).forEach(keyList::append);
-                logger.debug("Get " + keyList);
-                JsonTools.logJson((JsonObject) jsonObject);
-
-                // Get element in JsonObject.
-                Optional<JsonElement> element = JsonTools.findElement(keys, (JsonObject) jsonObject);
-                if (element.isPresent()) {
-                    result = new DataHandlerResult(Result.OK, element.get());
-                } else {
-                    result = new DataHandlerResult(Result.ERROR, new JsonPrimitive("No such key"));
+    /**
+     * Find records of a collection by the value of a field, using a secondary index.
+     *
+     * @param keys  Key of collection.
+     * @param field Key(s) of field, relative to each record.
+     * @param value Value to find, or null to find a range.
+     * @param min   Lowest value of range, or null for no lower bound.
+     * @param max   Highest value of range, or null for no upper bound.
+     * @return DataHandlerResult with matching records by id.
+     */
+    public DataHandlerResult find(String[] keys, String[] field, JsonElement value, JsonElement min, JsonElement max) {
+        // Exit if data could not be loaded.
+        if (loadError != null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(loadError));
+        }
+
+        // Exit if values cannot be looked up.
+        boolean range = value == null;
+        if (range ? (min != null && !FieldIndex.isIndexable(min)) || (max != null && !FieldIndex.isIndexable(max))
+                : !FieldIndex.isIndexable(value)) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive("Value to find is not a string, number or boolean."));
+        }
+
+        // Pick index. Ranges need a sorted index.
+        FieldIndex fieldIndex = null;
+        if (keys.length == 1) {
+            for (FieldIndex candidate : fieldIndexes.getOrDefault(keys[0], List.of())) {
+                if (candidate.covers(field) && (!range || candidate.type() == FieldIndex.Type.SORTED)
+                        && (fieldIndex == null || candidate.type() == FieldIndex.Type.HASH)) {
+                    fieldIndex = candidate;
                 }
-            } catch (com.google.gson.JsonParseException e) {
-                result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
             }
-        } catch (IOException e) {
-            result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
+        }
+        if (fieldIndex == null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(range ? "No sorted index on field." : "No index on field."));
+        }
+
+        int stripe = locks.stripe(keys);
+        locks.lockRead(stripe);
+        try {
+            Collection<Set<String>> idSets = range
+                    ? fieldIndex.findRange(min == null ? null : min.getAsJsonPrimitive(), max == null ? null : max.getAsJsonPrimitive())
+                    : List.of(fieldIndex.find(value.getAsJsonPrimitive()));
+
+            // Exit if collection holds no records.
+            JsonObject records = new JsonObject();
+            JsonElement collectionElement = topLevel(keys[0]);
+            if (collectionElement == null) {
+                return new DataHandlerResult(Result.OK, records);
+            }
+            if (!collectionElement.isJsonObject()) {
+                return new DataHandlerResult(Result.ERROR, new JsonPrimitive("Collection is not a JsonObject."));
+            }
+
+            // Copy records since in memory data may change after read lock is released.
+            JsonObject collection = collectionElement.getAsJsonObject();
+            idSets.forEach(ids -> ids.forEach(id -> {
+                JsonElement record = collection.get(id);
+                if (record != null) {
+                    records.add(id, copyOnWrite ? record : record.deepCopy());
+                }
+            }));
+            return new DataHandlerResult(Result.OK, records);
         } finally {
-            readLock.unlock();
+            locks.unlockRead(stripe);
         }
+    }
 
-        return result;
+    /**
+     * List keys of an object in sorted order, one page at a time.
+     *
+     * @param keys       Key(s) of object, or no keys for the top-level keys.
+     * @param start      Lowest key to list, or null for no lower bound.
+     * @param end        Key to stop before, or null for no upper bound.
+     * @param prefix     Prefix all listed keys must start with, or null to list all keys.
+     * @param cursor     Cursor returned with the previous page, or null for the first page.
+     * @param limit      Most keys to list. Capped at "jsondb.scanMaxLimit".
+     * @param withValues Whether to list values along with keys.
+     * @return DataHandlerResult with "keys" array, or "values" object if values were requested,
+     * and a "cursor" for the next page if there are more keys.
+     */
+    public DataHandlerResult scan(String[] keys, String start, String end, String prefix, String cursor,
+                                  int limit, boolean withValues) {
+        // Exit if data could not be loaded.
+        if (loadError != null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(loadError));
+        }
+
+        limit = Math.max(1, Math.min(limit, scanMaxLimit));
+
+        // Continue after last key of previous page.
+        String after = null;
+        if (cursor != null) {
+            try {
+                after = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                return new DataHandlerResult(Result.ERROR, new JsonPrimitive("Invalid cursor."));
+            }
+        }
+
+        // Top-level keys are sorted already. Each value is read under the lock of its own stripe.
+        if (keys.length == 0) {
+            return new DataHandlerResult(Result.OK, scanPage(data.navigableKeySet(), start, end, prefix, after, limit,
+                    withValues ? key -> {
+                        DataHandlerResult result = get(new String[]{key});
+                        return result.result() == Result.OK ? result.value() : null;
+                    } : null));
+        }
+
+        int stripe = locks.stripe(keys);
+        locks.lockRead(stripe);
+        try {
+            Optional<JsonElement> element = findElement(keys);
+            if (element.isEmpty()) {
+                return new DataHandlerResult(Result.ERROR, new JsonPrimitive("No such key"));
+            }
+            if (!element.get().isJsonObject()) {
+                return new DataHandlerResult(Result.ERROR, new JsonPrimitive("Element is not a JsonObject."));
+            }
+
+            // Copy values since in memory data may change after read lock is released.
+            JsonObject jsonObject = (JsonObject) element.get();
+            return new DataHandlerResult(Result.OK, scanPage(scanIndex.childKeys(keys, jsonObject), start, end, prefix,
+                    after, limit, withValues ? key -> copyOnWrite ? jsonObject.get(key) : jsonObject.get(key).deepCopy() : null));
+        } finally {
+            locks.unlockRead(stripe);
+        }
     }
 
     /**
@@ -163,49 +475,744 @@ public final class DataHandler {
      * @return DataHandlerResult.
      */
     public DataHandlerResult delete(String[] keys) {
-        DataHandlerResult result;
+        return commit(Mutation.delete(keys));
+    }
+
+    /**
+     * Run several operations under a single acquisition of the locks they need. Changes are
+     * made durable together and other requests never see part of the batch applied.
+     *
+     * @param operations Operations to run, in order.
+     * @param atomic     Whether to undo all changes if any change fails.
+     * @return DataHandlerResult for each operation.
+     */
+    public List<DataHandlerResult> batch(List<BatchOperation> operations, boolean atomic) {
+        List<DataHandlerResult> results = new ArrayList<>(operations.size());
+
+        // Exit if data could not be loaded.
+        if (loadError != null) {
+            var error = new DataHandlerResult(Result.ERROR, new JsonPrimitive(loadError));
+            operations.forEach(operation -> results.add(error));
+            return results;
+        }
+
+        // Read-only batches share their stripes with other readers. Followers only run read-only batches.
+        boolean readOnly = operations.stream().allMatch(operation -> operation.type() == BatchOperation.Type.GET);
+        if (!readOnly && replicationFollower != null) {
+            var error = new DataHandlerResult(Result.ERROR, new JsonPrimitive(READ_ONLY_ERROR));
+            operations.forEach(operation -> results.add(error));
+            return results;
+        }
+        int[] stripes = locks.stripes(operations.stream().map(BatchOperation::keys).toList());
+        if (readOnly) {
+            locks.lockRead(stripes);
+            try {
+                operations.forEach(operation -> results.add(getElement(operation.keys(), !copyOnWrite)));
+            } finally {
+                locks.unlockRead(stripes);
+            }
+            return results;
+        }
+
+        List<Mutation> applied = new ArrayList<>(operations.size());
+        List<Mutation> undo = new ArrayList<>(operations.size());
+        String persistResult = null;
 
-        writeLock.lock();
+        locks.lockWrite(stripes);
         try {
-            // Read data from file.
-            String dataAsString = new String(Files.readAllBytes(dataPath));
+            for (BatchOperation operation : operations) {
+                if (operation.type() == BatchOperation.Type.GET) {
+                    results.add(getElement(operation.keys(), !copyOnWrite));
+                    continue;
+                }
+
+                Mutation mutation = operation.type() == BatchOperation.Type.SET
+                        ? Mutation.set(operation.keys(), operation.value())
+                        : Mutation.delete(operation.keys());
+
+                // Remember how to restore element in case a later change fails.
+                Optional<JsonElement> previous = atomic ? findElement(mutation.keys()) : Optional.empty();
+
+                DataHandlerResult result = tracedMutation(mutation);
+                results.add(result);
+                if (result.result() == Result.OK) {
+                    applied.add(mutation);
+                    if (atomic) {
+                        undo.add(previous.isPresent()
+                                ? Mutation.set(mutation.keys(), previous.get())
+                                : Mutation.delete(mutation.keys()));
+                    }
+                } else if (atomic) {
+                    rollBack(undo, operations, results);
+                    applied.clear();
+                    break;
+                }
+            }
 
-            // Deserialize data to JsonObject.
+            // Record changes in the order they were applied.
+            if (!applied.isEmpty()) {
+                try {
+                    record(applied);
+                } catch (IOException e) {
+                    persistResult = e.toString();
+                }
+            }
+        } finally {
+            locks.unlockWrite(stripes);
+        }
+
+        // Make changes durable without blocking readers.
+        if (persistResult == null && !applied.isEmpty()) {
             try {
-                JsonElement jsonObject = new Gson().fromJson(dataAsString, JsonElement.class);
-
-                JsonTools.setLogger(logger);
-                StringBuilder keyList = new StringBuilder();
-                Arrays.stream(keys).forEach(keyList::append);
-                logger.debug("Before delete of " + keyList);
-                JsonTools.logJson((JsonObject) jsonObject);
-
-                // Remove element from JsonObject.
-                String removeResult = JsonTools.removeElement(keys, (JsonObject) jsonObject);
-                if (removeResult != null) {
-                    result = new DataHandlerResult(Result.ERROR, new JsonPrimitive("No such key"));
-                } else {
-                    // Write data to file.
-                    try {
-                        dataAsString = new Gson().toJson(jsonObject);
-                        Files.write(dataPath, dataAsString.getBytes());
-                        result = new DataHandlerResult(Result.OK, null);
-
-                        logger.debug("After delete of " + keyList);
-                        JsonTools.logJson((JsonObject) jsonObject);
-                    } catch (IOException e) {
-                        result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
+                sync();
+            } catch (IOException e) {
+                persistResult = e.toString();
+            }
+        }
+
+        // Report changes that could not be persisted.
+        if (persistResult != null) {
+            var error = new DataHandlerResult(Result.ERROR, new JsonPrimitive(persistResult));
+            for (int i = 0; i < operations.size(); i++) {
+                if (operations.get(i).type() != BatchOperation.Type.GET && results.get(i).result() == Result.OK) {
+                    results.set(i, error);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Write any unflushed changes and stop background persistence work.
+     */
+    public void close() {
+        if (replicationPrimary != null) {
+            replicationPrimary.close();
+        }
+        if (replicationFollower != null) {
+            replicationFollower.close();
+        }
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        persistence.close();
+        if (logger != null) {
+            logger.info("Response cache " + responseCache.stats());
+            logger.info("Compression " + Compression.stats());
+        }
+    }
+
+    /**
+     * Serialize a consistent copy of data.
+     *
+     * @param whileBlocked Action run with serialized data before changes are allowed again,
+     *                     or null if there is none.
+     * @return Serialized data.
+     */
+    private String snapshot(Consumer<String> whileBlocked) {
+        JsonObject dataAsObject = new JsonObject();
+        locks.lockAllRead();
+        try {
+            data.forEach((key, element) -> dataAsObject.add(key, element == UNLOADED ? topLevel(key) : element));
+
+            // Published elements never change with copy on write, so writers may go on while serializing.
+            if (whileBlocked != null || !copyOnWrite) {
+                String dataAsString = gson.toJson(dataAsObject);
+                if (whileBlocked != null) {
+                    whileBlocked.accept(dataAsString);
+                }
+                return dataAsString;
+            }
+        } finally {
+            locks.unlockAllRead();
+        }
+
+        return gson.toJson(dataAsObject);
+    }
+
+    /**
+     * Serialize the top-level keys of one partition. Each key is copied under the read lock of
+     * its stripe only, and serialized after the lock is released, so writers of other stripes
+     * go on and no writer waits for serializing. Keys are not copied at one instant, which
+     * partition files, written one at a time, never provided.
+     *
+     * @param keys Top-level keys of partition, in order. Keys no longer in data are removed.
+     * @return Serialized data.
+     */
+    private String partitionSnapshot(Set<String> keys) {
+        // Take each stripe once for all its keys.
+        Map<Integer, List<String>> keysByStripe = new HashMap<>();
+        keys.forEach(key -> keysByStripe.computeIfAbsent(locks.stripe(new String[]{key}), stripe -> new ArrayList<>()).add(key));
+
+        Map<String, JsonElement> copies = new HashMap<>();
+        keysByStripe.forEach((stripe, stripeKeys) -> {
+            locks.lockRead(stripe);
+            try {
+                for (String key : stripeKeys) {
+                    JsonElement element = topLevel(key);
+                    if (element == null) {
+                        // Removed while holding the lock, so a set of the key afterwards records it again.
+                        keys.remove(key);
+                    } else {
+                        copies.put(key, copyOnWrite ? element : element.deepCopy());
                     }
                 }
-            } catch (com.google.gson.JsonParseException e) {
-                result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
+            } finally {
+                locks.unlockRead(stripe);
+            }
+        });
+
+        JsonObject dataAsObject = new JsonObject();
+        keys.forEach(key -> {
+            JsonElement copy = copies.get(key);
+            if (copy != null) {
+                dataAsObject.add(key, copy);
+            }
+        });
+        return gson.toJson(dataAsObject);
+    }
+
+    /**
+     * Serialize a consistent copy of data in binary format. Top-level elements still in the
+     * mapped data file are copied from it without decoding.
+     *
+     * @return Serialized data.
+     */
+    private byte[] binarySnapshot() {
+        Map<String, Object> members = new LinkedHashMap<>();
+        locks.lockAllRead();
+        try {
+            data.forEach((key, element) -> members.put(key,
+                    element == UNLOADED ? BinaryFormat.slice(mappedData, mappedPositions.get(key)) : element));
+
+            // Published elements never change with copy on write, so writers may go on while serializing.
+            if (!copyOnWrite) {
+                return BinaryFormat.encode(members);
+            }
+        } finally {
+            locks.unlockAllRead();
+        }
+
+        return BinaryFormat.encode(members);
+    }
+
+    /**
+     * Apply change and wait until it is durable.
+     *
+     * @param mutation Change to apply.
+     * @return DataHandlerResult.
+     */
+    private DataHandlerResult commit(Mutation mutation) {
+        // Followers only change data as told by their primary.
+        if (replicationFollower != null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(READ_ONLY_ERROR));
+        }
+        if (groupCommitter != null) {
+            // Batch is applied and written by the group commit thread, so its phases are not broken down.
+            RequestTrace trace = RequestTrace.current();
+            long start = trace != null ? System.nanoTime() : 0;
+            DataHandlerResult result = groupCommitter.submit(mutation);
+            if (trace != null) {
+                trace.add(RequestTrace.Phase.GROUP_COMMIT, System.nanoTime() - start);
+            }
+            return result;
+        }
+        return apply(List.of(mutation)).get(0);
+    }
+
+    /**
+     * Apply changes under a single acquisition of the write locks they need and make them
+     * durable together.
+     *
+     * @param mutations Changes to apply, in order.
+     * @return DataHandlerResult for each change.
+     */
+    List<DataHandlerResult> apply(List<Mutation> mutations) {
+        List<DataHandlerResult> results = new ArrayList<>(mutations.size());
+        List<Mutation> applied = new ArrayList<>(mutations.size());
+        String persistResult = null;
+
+        int[] stripes = locks.stripes(mutations.stream().map(Mutation::keys).toList());
+        locks.lockWrite(stripes);
+        try {
+            for (Mutation mutation : mutations) {
+                DataHandlerResult result = tracedMutation(mutation);
+                if (result.result() == Result.OK) {
+                    applied.add(mutation);
+                }
+                results.add(result);
+            }
+
+            // Record changes in the order they were applied.
+            if (!applied.isEmpty()) {
+                try {
+                    record(applied);
+                } catch (IOException e) {
+                    persistResult = e.toString();
+                }
             }
-        } catch (IOException e) {
-            result = new DataHandlerResult(Result.ERROR, new JsonPrimitive(e.toString()));
         } finally {
-            writeLock.unlock();
+            locks.unlockWrite(stripes);
+        }
+
+        // Make changes durable without blocking readers.
+        if (persistResult == null && !applied.isEmpty()) {
+            try {
+                sync();
+            } catch (IOException e) {
+                persistResult = e.toString();
+            }
+        }
+
+        // Report changes that could not be persisted.
+        if (persistResult != null) {
+            var error = new DataHandlerResult(Result.ERROR, new JsonPrimitive(persistResult));
+            results.replaceAll(result -> result.result() == Result.OK ? error : result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Record applied changes with persistence and stream them to followers. Must be called
+     * while holding write locks of the changed keys.
+     *
+     * @param applied Changes applied, in order.
+     * @throws IOException If changes could not be recorded.
+     */
+    private void record(List<Mutation> applied) throws IOException {
+        RequestTrace trace = RequestTrace.current();
+        long start = trace != null ? System.nanoTime() : 0;
+        persistence.record(applied);
+        if (trace != null) {
+            trace.add(RequestTrace.Phase.FILE_IO, System.nanoTime() - start);
+        }
+        if (replicationPrimary != null) {
+            replicationPrimary.publish(applied);
+        }
+    }
+
+    /**
+     * Make recorded changes durable.
+     *
+     * @throws IOException If changes could not be written.
+     */
+    private void sync() throws IOException {
+        RequestTrace trace = RequestTrace.current();
+        long start = trace != null ? System.nanoTime() : 0;
+        persistence.sync();
+        if (trace != null) {
+            trace.add(RequestTrace.Phase.FILE_IO, System.nanoTime() - start);
         }
+    }
 
+    /**
+     * Replace all data with a snapshot from the primary, as changes so indexes and caches follow.
+     *
+     * @param snapshot Data of primary.
+     */
+    private void replaceAll(JsonObject snapshot) {
+        List<Mutation> mutations = new ArrayList<>();
+        data.keySet().stream()
+                .filter(key -> !snapshot.has(key))
+                .forEach(key -> mutations.add(Mutation.delete(new String[]{key})));
+        snapshot.entrySet().forEach(entry -> mutations.add(Mutation.set(new String[]{entry.getKey()}, entry.getValue())));
+
+        // Apply in slices so readers are not held up by one long lock acquisition.
+        for (int from = 0; from < mutations.size(); from += 256) {
+            apply(mutations.subList(from, Math.min(mutations.size(), from + 256)));
+        }
+    }
+
+    /**
+     * Undo changes of a failed atomic batch. Must be called while holding write locks of the batch.
+     *
+     * @param undo       Changes restoring elements, in the order the batch was applied.
+     * @param operations Operations of batch.
+     * @param results    Results of operations run so far, ending with the failed change. Updated
+     *                   to report the rollback.
+     */
+    private void rollBack(List<Mutation> undo, List<BatchOperation> operations, List<DataHandlerResult> results) {
+        for (int i = undo.size() - 1; i >= 0; i--) {
+            applyMutation(undo.get(i));
+        }
+
+        // Earlier changes were undone and later operations never ran. Gets keep what they read,
+        // and the failed change keeps its own error.
+        var rolledBack = new DataHandlerResult(Result.ERROR, new JsonPrimitive("Rolled back"));
+        for (int i = 0; i < results.size() - 1; i++) {
+            if (operations.get(i).type() != BatchOperation.Type.GET) {
+                results.set(i, rolledBack);
+            }
+        }
+        var notExecuted = new DataHandlerResult(Result.ERROR, new JsonPrimitive("Not executed"));
+        while (results.size() < operations.size()) {
+            results.add(notExecuted);
+        }
+    }
+
+    /**
+     * Apply change to in memory data, adding the time it took to the request trace. Must be
+     * called while holding write lock of key(s) stripe.
+     *
+     * @param mutation Change to apply.
+     * @return DataHandlerResult.
+     */
+    private DataHandlerResult tracedMutation(Mutation mutation) {
+        RequestTrace trace = RequestTrace.current();
+        if (trace == null) {
+            return applyMutation(mutation);
+        }
+        long start = System.nanoTime();
+        DataHandlerResult result = applyMutation(mutation);
+        trace.add(RequestTrace.Phase.MUTATE, System.nanoTime() - start);
         return result;
     }
+
+    /**
+     * Apply change to in memory data. Must be called while holding write lock of key(s) stripe.
+     *
+     * @param mutation Change to apply.
+     * @return DataHandlerResult.
+     */
+    private DataHandlerResult applyMutation(Mutation mutation) {
+        // Exit if data could not be loaded.
+        if (loadError != null) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive(loadError));
+        }
+
+        String[] keys = mutation.keys();
+        if (mutation.type() == Mutation.Type.SET) {
+            logSubtree(() -> "Before update with " + mutation.value(), keys);
+
+            // Update element.
+            String editResult = updateElement(keys, mutation.value());
+            if (editResult != null) {
+                return new DataHandlerResult(Result.ERROR, new JsonPrimitive(editResult));
+            }
+
+            logSubtree(() -> "After update with " + mutation.value(), keys);
+        } else {
+            logSubtree(() -> "Before delete of " + String.join("", keys), keys);
+
+            // Remove element.
+            String removeResult = removeElement(keys);
+            if (removeResult != null) {
+                return new DataHandlerResult(Result.ERROR, new JsonPrimitive("No such key"));
+            }
+
+            logSubtree(() -> "After delete of " + String.join("", keys), keys);
+        }
+
+        scanIndex.changed(keys, mutation.type() == Mutation.Type.DELETE);
+        responseCache.invalidate(keys);
+        updateFieldIndexes(keys);
+        return new DataHandlerResult(Result.OK, null);
+    }
+
+    /**
+     * Get value for element with key(s). Must be called while holding read lock of key(s) stripe
+     * unless copy on write is used.
+     *
+     * @param keys Key(s) of element to get.
+     * @param copy Whether to return a copy of element.
+     * @return DataHandlerResult with value for element if found.
+     */
+    private DataHandlerResult getElement(String[] keys, boolean copy) {
+        logSubtree(() -> "Get " + String.join("", keys), keys);
+
+        // Get element.
+        Optional<JsonElement> element = findElement(keys);
+        if (element.isEmpty()) {
+            return new DataHandlerResult(Result.ERROR, new JsonPrimitive("No such key"));
+        }
+        return new DataHandlerResult(Result.OK, copy ? element.get().deepCopy() : element.get());
+    }
+
+    /**
+     * List one page of sorted keys. Seeks to the first key and visits only listed keys.
+     *
+     * @param sortedKeys Keys to list from.
+     * @param start      Lowest key to list, or null for no lower bound.
+     * @param end        Key to stop before, or null for no upper bound.
+     * @param prefix     Prefix all listed keys must start with, or null to list all keys.
+     * @param after      Key to continue after, or null.
+     * @param limit      Most keys to list.
+     * @param values     Function getting value of key, or null to list keys only.
+     * @return Page with "keys" array or "values" object, and "cursor" if there are more keys.
+     */
+    private static JsonObject scanPage(NavigableSet<String> sortedKeys, String start, String end, String prefix,
+                                       String after, int limit, Function<String, JsonElement> values) {
+        // Find first key to list.
+        String from = start;
+        if (prefix != null && (from == null || prefix.compareTo(from) > 0)) {
+            from = prefix;
+        }
+        boolean inclusive = true;
+        if (after != null && (from == null || after.compareTo(from) >= 0)) {
+            from = after;
+            inclusive = false;
+        }
+        NavigableSet<String> tail = from == null ? sortedKeys : sortedKeys.tailSet(from, inclusive);
+
+        JsonArray keyArray = new JsonArray();
+        JsonObject valueObject = new JsonObject();
+        String lastKey = null;
+        boolean more = false;
+        for (String key : tail) {
+            if ((end != null && key.compareTo(end) >= 0) || (prefix != null && !key.startsWith(prefix))) {
+                break;
+            }
+            if (keyArray.size() + valueObject.size() >= limit) {
+                more = true;
+                break;
+            }
+
+            // Key may be removed after it was listed. Skip it rather than listing a missing value.
+            if (values != null) {
+                JsonElement value = values.apply(key);
+                if (value == null) {
+                    continue;
+                }
+                valueObject.add(key, value);
+            } else {
+                keyArray.add(key);
+            }
+            lastKey = key;
+        }
+
+        JsonObject page = new JsonObject();
+        if (values != null) {
+            page.add("values", valueObject);
+        } else {
+            page.add("keys", keyArray);
+        }
+        if (more) {
+            page.addProperty("cursor", Base64.getUrlEncoder().withoutPadding().encodeToString(lastKey.getBytes(StandardCharsets.UTF_8)));
+        }
+        return page;
+    }
+
+    /**
+     * Update secondary indexes after a change. Must be called while holding write lock of key(s) stripe.
+     *
+     * @param keys Key(s) of changed element.
+     */
+    private void updateFieldIndexes(String[] keys) {
+        List<FieldIndex> indexes = fieldIndexes.get(keys[0]);
+        if (indexes == null) {
+            return;
+        }
+
+        // Whole collection changed.
+        if (keys.length == 1) {
+            indexes.forEach(index -> index.rebuild(topLevel(keys[0])));
+            return;
+        }
+
+        // One record changed.
+        String id = keys[1];
+        JsonElement record = findElement(new String[]{keys[0], id}).orElse(null);
+        indexes.forEach(index -> index.update(id, record));
+    }
+
+    /**
+     * Parse secondary index declarations.
+     *
+     * @param declarations Comma separated declarations like "users:car.model:hash". The field is
+     *                     a dot separated key path relative to each record of the collection, and
+     *                     the type is "hash" or "sorted" (default "hash"). Malformed declarations
+     *                     are ignored.
+     * @return Empty indexes by collection.
+     */
+    private static Map<String, List<FieldIndex>> parseFieldIndexes(String declarations) {
+        Map<String, List<FieldIndex>> indexes = new HashMap<>();
+        for (String declaration : declarations.split(",")) {
+            String[] parts = declaration.trim().split(":");
+            if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty() || parts[1].isEmpty()) {
+                continue;
+            }
+            FieldIndex.Type type = FieldIndex.Type.HASH;
+            if (parts.length == 3 && parts[2].equalsIgnoreCase("sorted")) {
+                type = FieldIndex.Type.SORTED;
+            }
+            indexes.computeIfAbsent(parts[0], collection -> new ArrayList<>())
+                    .add(new FieldIndex(parts[0], parts[1].split("\\."), type));
+        }
+        return indexes;
+    }
+
+    /**
+     * Log message and the top-level element touched by key(s). Nothing is prepared unless debug
+     * messages are recorded.
+     *
+     * @param message Supplier of message to log.
+     * @param keys    Key(s) of touched element.
+     */
+    private void logSubtree(Supplier<String> message, String[] keys) {
+        if (logger.isDebugEnabled()) {
+            logger.debug(message);
+            JsonTools.logJson(data.get(keys[0]));
+        }
+    }
+
+    /**
+     * Get element with key(s). Must be called while holding lock of key(s) stripe.
+     *
+     * @param keys Key(s) of element to get.
+     * @return Optional element if element was found. Otherwise, returns Optional empty.
+     */
+    private Optional<JsonElement> findElement(String[] keys) {
+        if (keys.length == 1) {
+            return Optional.ofNullable(topLevel(keys[0]));
+        }
+
+        // Decode only the nested element of a top-level element still in the mapped data file.
+        if (data.get(keys[0]) == UNLOADED) {
+            int position = BinaryFormat.find(mappedData, mappedPositions.get(keys[0]), keys, 1);
+            return position < 0 ? Optional.empty() : Optional.of(BinaryFormat.decode(mappedData, position));
+        }
+
+        // Use index for nested elements looked up before.
+        JsonElement indexedElement = pathIndex.get(keys);
+        if (indexedElement != null) {
+            return Optional.of(indexedElement);
+        }
+
+        long version = pathIndex.version(keys);
+        JsonElement topLevelElement = topLevel(keys[0]);
+        if (topLevelElement == null || !topLevelElement.isJsonObject()) {
+            return Optional.empty();
+        }
+        Optional<JsonElement> element = JsonTools.findElement(Arrays.copyOfRange(keys, 1, keys.length), (JsonObject) topLevelElement);
+        element.ifPresent(found -> pathIndex.put(keys, found, version));
+        return element;
+    }
+
+    /**
+     * Get top-level element, decoding it from the mapped data file on first use. Must be called
+     * while holding lock of key stripe unless copy on write is used.
+     *
+     * @param key Top-level key.
+     * @return Top-level element, or null if not found.
+     */
+    private JsonElement topLevel(String key) {
+        JsonElement element = data.get(key);
+        if (element != UNLOADED) {
+            return element;
+        }
+
+        // Concurrent readers may both decode. Only the first decoded element is kept.
+        data.replace(key, UNLOADED, BinaryFormat.decode(mappedData, mappedPositions.get(key)));
+        return data.get(key);
+    }
+
+    /**
+     * Update element with key(s) to value. Must be called while holding write lock of key(s) stripe.
+     *
+     * @param keys  Key(s) of element to update.
+     * @param value Value to set for element.
+     * @return null if update was successful. Otherwise, returns a string describing problem.
+     */
+    private String updateElement(String[] keys, JsonElement value) {
+        if (keys.length == 1) {
+            data.put(keys[0], value);
+            pathIndex.invalidate(keys, false);
+            return null;
+        }
+
+        // Exit if element location cannot hold element.
+        JsonElement topLevelElement = topLevel(keys[0]);
+        if (topLevelElement == null) {
+            return "Element location not found.";
+        }
+        if (!topLevelElement.isJsonObject()) {
+            return "Element location is not a JsonObject.";
+        }
+
+        if (copyOnWrite) {
+            // Publish updated copy. Readers see either the old or the new top-level element.
+            String[] innerKeys = Arrays.copyOfRange(keys, 1, keys.length);
+            String locationResult = JsonTools.checkElementLocation(innerKeys, (JsonObject) topLevelElement);
+            if (locationResult == null) {
+                data.put(keys[0], JsonTools.copyWithElement(innerKeys, value, (JsonObject) topLevelElement));
+                pathIndex.invalidate(keys, true);
+            }
+            return locationResult;
+        }
+
+        // Exit if element location not found.
+        Optional<JsonElement> elementLocation = findElement(Arrays.copyOf(keys, keys.length - 1));
+        if (elementLocation.isEmpty()) {
+            return "Element location not found.";
+        }
+        if (!elementLocation.get().isJsonObject()) {
+            return "Element location is not a JsonObject.";
+        }
+
+        // Update element at key with new value.
+        String elementKey = keys[keys.length - 1];
+        ((JsonObject) elementLocation.get()).remove(elementKey);
+        ((JsonObject) elementLocation.get()).add(elementKey, value);
+        pathIndex.invalidate(keys, false);
+        return null;
+    }
+
+    /**
+     * Remove element with key(s). Must be called while holding write lock of key(s) stripe.
+     *
+     * @param keys Key(s) of element to remove.
+     * @return null if remove was successful. Otherwise, returns a string describing problem.
+     */
+    private String removeElement(String[] keys) {
+        if (keys.length == 1) {
+            if (data.remove(keys[0]) == null) {
+                return "Key not found.";
+            }
+            pathIndex.invalidate(keys, false);
+            return null;
+        }
+
+        // Exit if element location not found.
+        JsonElement topLevelElement = topLevel(keys[0]);
+        if (topLevelElement == null) {
+            return "Element location not found.";
+        }
+        if (!topLevelElement.isJsonObject()) {
+            return "Element location is not a JsonObject.";
+        }
+
+        if (copyOnWrite) {
+            // Publish copy without element. Readers see either the old or the new top-level element.
+            String[] innerKeys = Arrays.copyOfRange(keys, 1, keys.length);
+            String locationResult = JsonTools.checkElementLocation(innerKeys, (JsonObject) topLevelElement);
+            if (locationResult != null) {
+                return locationResult;
+            }
+            if (JsonTools.findElement(innerKeys, (JsonObject) topLevelElement).isEmpty()) {
+                return "Key not found.";
+            }
+            data.put(keys[0], JsonTools.copyWithoutElement(innerKeys, (JsonObject) topLevelElement));
+            pathIndex.invalidate(keys, true);
+            return null;
+        }
+
+        // Exit if element location not found.
+        Optional<JsonElement> elementLocation = findElement(Arrays.copyOf(keys, keys.length - 1));
+        if (elementLocation.isEmpty()) {
+            return "Element location not found.";
+        }
+        if (!elementLocation.get().isJsonObject()) {
+            return "Element location is not a JsonObject.";
+        }
+
+        // Exit if key not found.
+        String elementKey = keys[keys.length - 1];
+        if (((JsonObject) elementLocation.get()).remove(elementKey) == null) {
+            return "Key not found.";
+        }
+        pathIndex.invalidate(keys, false);
+        return null;
+    }
 }
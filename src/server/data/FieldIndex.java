@@ -0,0 +1,194 @@
+package server.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import server.util.JsonTools;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Secondary index on a field of the records in a collection. A collection is a top-level
+ * element holding records by id, and the field is a key path relative to each record. Only
+ * string, number and boolean field values are indexed.
+ *
+ * Guarded by the lock stripe of the collection: changes hold its write lock and queries its read lock.
+ */
+final class FieldIndex {
+    enum Type {
+        // Equality lookups.
+        HASH,
+        // Equality and range lookups.
+        SORTED
+    }
+
+    // Numbers before strings before booleans. Numbers compare by value, so 1 and 1.0 are equal.
+    static final Comparator<JsonPrimitive> VALUE_ORDER = (first, second) -> {
+        int rankDifference = rank(first) - rank(second);
+        if (rankDifference != 0) {
+            return rankDifference;
+        }
+        if (first.isNumber()) {
+            return first.getAsBigDecimal().compareTo(second.getAsBigDecimal());
+        }
+        if (first.isBoolean()) {
+            return Boolean.compare(first.getAsBoolean(), second.getAsBoolean());
+        }
+        return first.getAsString().compareTo(second.getAsString());
+    };
+
+    private final String collection;
+    private final String[] field;
+    private final Type type;
+
+    // Ids of records by field value, and field value by record id.
+    private final Map<JsonPrimitive, Set<String>> idsByValue;
+    private final Map<String, JsonPrimitive> valueById = new HashMap<>();
+
+    /**
+     * Create empty index.
+     *
+     * @param collection Top-level key of collection.
+     * @param field      Key(s) of field, relative to each record.
+     * @param type       Kind of lookups supported.
+     */
+    FieldIndex(String collection, String[] field, Type type) {
+        this.collection = collection;
+        this.field = field;
+        this.type = type;
+        this.idsByValue = type == Type.SORTED ? new TreeMap<>(VALUE_ORDER) : new HashMap<>();
+    }
+
+    String collection() {
+        return collection;
+    }
+
+    Type type() {
+        return type;
+    }
+
+    /**
+     * Check whether index covers field.
+     *
+     * @param field Key(s) of field, relative to each record.
+     * @return true if index is on field.
+     */
+    boolean covers(String[] field) {
+        return Arrays.equals(this.field, field);
+    }
+
+    /**
+     * Index all records of collection, replacing anything indexed before.
+     *
+     * @param collectionElement Collection, or null if it does not exist.
+     */
+    void rebuild(JsonElement collectionElement) {
+        idsByValue.clear();
+        valueById.clear();
+        if (collectionElement != null && collectionElement.isJsonObject()) {
+            ((JsonObject) collectionElement).entrySet().forEach(entry -> update(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Index current field value of record.
+     *
+     * @param id     Id of record.
+     * @param record Record, or null if it was removed.
+     */
+    void update(String id, JsonElement record) {
+        JsonPrimitive oldValue = valueById.remove(id);
+        if (oldValue != null) {
+            Set<String> ids = idsByValue.get(oldValue);
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                idsByValue.remove(oldValue);
+            }
+        }
+
+        JsonPrimitive newValue = fieldValue(record);
+        if (newValue != null) {
+            valueById.put(id, newValue);
+            idsByValue.computeIfAbsent(newValue, value -> new TreeSet<>()).add(id);
+        }
+    }
+
+    /**
+     * Get ids of records whose field equals value.
+     *
+     * @param value Value to find.
+     * @return Ids of matching records, in order.
+     */
+    Set<String> find(JsonPrimitive value) {
+        return idsByValue.getOrDefault(value, Set.of());
+    }
+
+    /**
+     * Get ids of records whose field is in a range. Only for sorted indexes.
+     *
+     * @param min Lowest value to find, or null for no lower bound.
+     * @param max Highest value to find, or null for no upper bound.
+     * @return Ids of matching records, in field value order.
+     */
+    Collection<Set<String>> findRange(JsonPrimitive min, JsonPrimitive max) {
+        NavigableMap<JsonPrimitive, Set<String>> sorted = (NavigableMap<JsonPrimitive, Set<String>>) idsByValue;
+        if (min != null && max != null) {
+            return VALUE_ORDER.compare(min, max) > 0 ? Set.of() : sorted.subMap(min, true, max, true).values();
+        }
+        if (min != null) {
+            return sorted.tailMap(min, true).values();
+        }
+        if (max != null) {
+            return sorted.headMap(max, true).values();
+        }
+        return sorted.values();
+    }
+
+    /**
+     * Get indexable field value of record.
+     *
+     * @param record Record.
+     * @return Field value, or null if record has no string, number or boolean at field.
+     */
+    private JsonPrimitive fieldValue(JsonElement record) {
+        if (record == null || !record.isJsonObject()) {
+            return null;
+        }
+        return JsonTools.findElement(field, (JsonObject) record)
+                .filter(FieldIndex::isIndexable)
+                .map(JsonElement::getAsJsonPrimitive)
+                .orElse(null);
+    }
+
+    /**
+     * Check whether value can be indexed or looked up.
+     *
+     * @param value Value to check.
+     * @return true if value is a string, boolean or finite number.
+     */
+    static boolean isIndexable(JsonElement value) {
+        if (value == null || !value.isJsonPrimitive()) {
+            return false;
+        }
+        if (value.getAsJsonPrimitive().isNumber()) {
+            try {
+                value.getAsBigDecimal();
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int rank(JsonPrimitive value) {
+        return value.isNumber() ? 0 : value.isString() ? 1 : 2;
+    }
+}
@@ -0,0 +1,150 @@
+package server.data;
+
+import com.google.gson.JsonPrimitive;
+import server.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+final class GroupCommitter {
+    private record Pending(
+            Mutation mutation,
+            CompletableFuture<DataHandlerResult> result
+    ) {
+    }
+
+    // Queued by close() to stop the committer.
+    private static final Pending STOP = new Pending(null, null);
+
+    private final Function<List<Mutation>, List<DataHandlerResult>> applier;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread committer;
+
+    private volatile boolean running = true;
+
+    /**
+     * Start committing changes in batches.
+     *
+     * @param applier       Applies a batch of changes and makes them durable together.
+     * @param maxBatchSize  Most changes to apply in one batch.
+     * @param maxWaitMicros Longest time to wait for more changes once a batch has started.
+     */
+    GroupCommitter(Function<List<Mutation>, List<DataHandlerResult>> applier, int maxBatchSize, long maxWaitMicros) {
+        this.applier = applier;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxWaitMicros));
+        this.committer = new DaemonThreadFactory("group-committer").newThread(this::run);
+        this.committer.start();
+    }
+
+    /**
+     * Queue change and wait until the batch holding it is durable.
+     *
+     * @param mutation Change to apply.
+     * @return DataHandlerResult.
+     */
+    DataHandlerResult submit(Mutation mutation) {
+        var pending = new Pending(mutation, new CompletableFuture<>());
+        queue.add(pending);
+
+        // Exit if change was queued too late to be committed.
+        if (!running && queue.remove(pending)) {
+            return new DataHandlerResult(DataHandler.Result.ERROR, new JsonPrimitive("Data handler is closed"));
+        }
+
+        try {
+            return pending.result().join();
+        } catch (CompletionException e) {
+            return error(e.getCause() == null ? e : e.getCause());
+        }
+    }
+
+    /**
+     * Commit queued changes and stop.
+     */
+    void close() {
+        // Stop committer after the changes queued before it. It is not interrupted, since an
+        // interrupt during file I/O would close the data file's channel.
+        running = false;
+        queue.add(STOP);
+        boolean interrupted = false;
+        while (committer.isAlive()) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        // Commit anything queued while stopping.
+        List<Pending> batch = new ArrayList<>();
+        while (queue.drainTo(batch, maxBatchSize) > 0) {
+            commit(batch);
+            batch.clear();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        Pending next = null;
+        while (next != STOP) {
+            try {
+                // Wait for first change, then gather more until batch is full or wait time is used up.
+                next = queue.take();
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (next != STOP) {
+                    batch.add(next);
+                    if (batch.size() == maxBatchSize) {
+                        break;
+                    }
+                    next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Not stopped by interrupts. Commit what was gathered.
+            }
+
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        try {
+            List<DataHandlerResult> results = applier.apply(batch.stream().map(Pending::mutation).toList());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result().complete(results.get(i));
+            }
+        } catch (RuntimeException e) {
+            // Report failure to each waiting request, as a failed disk write is reported.
+            DataHandlerResult error = error(e);
+            batch.forEach(pending -> pending.result().complete(error));
+        }
+    }
+
+    private static DataHandlerResult error(Throwable cause) {
+        return new DataHandlerResult(DataHandler.Result.ERROR, new JsonPrimitive(cause.toString()));
+    }
+}
@@ -0,0 +1,47 @@
+package server.data;
+
+import java.util.Arrays;
+
+/*
+ * Key path usable as a hash key, ordered so that every path is followed by the paths below it.
+ */
+final class KeyPath implements Comparable<KeyPath> {
+    private final String[] keys;
+    private final int hash;
+
+    /**
+     * Wrap key(s). The array must not be changed afterwards.
+     *
+     * @param keys Key(s) of element.
+     */
+    KeyPath(String[] keys) {
+        this.keys = keys;
+        this.hash = Arrays.hashCode(keys);
+    }
+
+    /**
+     * Check whether path is prefix or lies below prefix.
+     *
+     * @param prefix Path to compare with.
+     * @return true if path starts with all keys of prefix.
+     */
+    boolean startsWith(KeyPath prefix) {
+        return keys.length >= prefix.keys.length
+                && Arrays.equals(keys, 0, prefix.keys.length, prefix.keys, 0, prefix.keys.length);
+    }
+
+    @Override
+    public int compareTo(KeyPath other) {
+        return Arrays.compare(keys, other.keys);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof KeyPath path && hash == path.hash && Arrays.equals(keys, path.keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,380 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import server.util.DaemonThreadFactory;
+import server.util.JsonTools;
+import server.util.Logger;
+import server.util.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/*
+ * Log file layout: one JSON object per line. The first line names the snapshot the log applies to:
+ *   {"base":<crc32 of snapshot file>}
+ * followed by one line per change:
+ *   {"op":"set","key":["a","b"],"value":...}
+ *   {"op":"delete","key":["a","b"]}
+ *
+ * Compaction serializes the data while writers are blocked, renames the active log to a
+ * "compacting" log and starts a new active log based on the serialized data. The snapshot
+ * is then written and the compacting log deleted. On load, the compacting log is replayed
+ * only if the snapshot is still the one it was based on.
+ */
+final class LogPersistence implements Persistence {
+    private static final LongAdder logBytesWritten = Metrics.getInstance().counter("log.bytesWritten");
+
+    private final Path dataPath;
+    private final Path logPath;
+    private final Path compactingLogPath;
+    private final DataHandler.FlushPolicy flushPolicy;
+    private final long flushIntervalMillis;
+    private final long compactThresholdBytes;
+    private final SnapshotSource snapshotSource;
+    private final Gson gson = new Gson();
+
+    private final Object logMonitor = new Object();
+    private final Object syncMonitor = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private final AtomicBoolean unforced = new AtomicBoolean(false);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("log-compactor"));
+    private ScheduledExecutorService flusher;
+    private FileChannel logChannel;
+
+    // Bytes appended to logs since start, and how many of them are known to be on disk.
+    private volatile long recordedBytes;
+    private long forcedBytes;
+
+    private Logger logger;
+
+    // Errors found before a logger was set, such as while loading.
+    private final List<String> pendingErrors = new ArrayList<>();
+
+    LogPersistence(Path dataPath, DataHandler.FlushPolicy flushPolicy, long flushIntervalMillis, long compactThresholdBytes, SnapshotSource snapshotSource) {
+        this.dataPath = dataPath;
+        this.logPath = dataPath.resolveSibling(dataPath.getFileName() + ".log");
+        this.compactingLogPath = dataPath.resolveSibling(dataPath.getFileName() + ".log.compacting");
+        this.flushPolicy = flushPolicy;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.compactThresholdBytes = compactThresholdBytes;
+        this.snapshotSource = snapshotSource;
+    }
+
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+        pendingErrors.forEach(logger::error);
+        pendingErrors.clear();
+    }
+
+    @Override
+    public JsonObject load() throws IOException {
+        byte[] snapshotBytes = SnapshotFile.read(dataPath);
+        long snapshotChecksum = checksum(snapshotBytes);
+        JsonObject data = SnapshotFile.parse(snapshotBytes, gson);
+
+        // Replay compacting log if snapshot was not replaced before it could be deleted.
+        boolean compactingReplayed = false;
+        if (Files.exists(compactingLogPath)) {
+            if (replay(compactingLogPath, data, snapshotChecksum, false)) {
+                compactingReplayed = true;
+            }
+        }
+
+        // Replay active log.
+        boolean activeReplayed = false;
+        if (Files.exists(logPath)) {
+            activeReplayed = replay(logPath, data, snapshotChecksum, compactingReplayed);
+        }
+
+        // Keep a log that does not apply to the snapshot for inspection instead of overwriting it.
+        if (Files.exists(logPath) && !activeReplayed) {
+            if (Files.size(logPath) == 0) {
+                Files.delete(logPath);
+            } else {
+                Path rejectedPath = logPath.resolveSibling(logPath.getFileName() + ".rejected-" + System.currentTimeMillis());
+                Files.move(logPath, rejectedPath);
+                logError("Log " + logPath + " does not apply to data file " + dataPath
+                        + ". Its changes were not loaded. Moved it to " + rejectedPath + ".");
+            }
+        }
+
+        if (compactingReplayed) {
+            // Logs are out of step with snapshot. Fold everything into a new snapshot.
+            byte[] bytes = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+            SnapshotFile.write(dataPath, bytes);
+            startLog(logPath, checksum(bytes));
+            Files.deleteIfExists(compactingLogPath);
+        } else {
+            Files.deleteIfExists(compactingLogPath);
+            if (Files.notExists(logPath)) {
+                startLog(logPath, snapshotChecksum);
+            }
+        }
+        logChannel = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        // Start background forcing of log if requested.
+        if (flushPolicy == DataHandler.FlushPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("log-flusher"));
+            flusher.scheduleWithFixedDelay(this::force, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return data;
+    }
+
+    @Override
+    public void record(List<Mutation> mutations) throws IOException {
+        // Encode changes.
+        StringBuilder lines = new StringBuilder();
+        for (Mutation mutation : mutations) {
+            lines.append(gson.toJson(mutation.toJson())).append('\n');
+        }
+
+        long logSize;
+        synchronized (logMonitor) {
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+            write(logChannel, bytes);
+            recordedBytes += bytes.length;
+            unforced.set(true);
+            logSize = logChannel.size();
+        }
+
+        // Fold log into snapshot once it is large enough.
+        if (logSize >= compactThresholdBytes && compacting.compareAndSet(false, true)) {
+            compactor.execute(this::compact);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (flushPolicy != DataHandler.FlushPolicy.ALWAYS) {
+            return;
+        }
+
+        // One force covers every change appended so far, so callers waiting meanwhile share it.
+        long target = recordedBytes;
+        synchronized (syncMonitor) {
+            if (forcedBytes >= target) {
+                return;
+            }
+            FileChannel channel;
+            long reached;
+            synchronized (logMonitor) {
+                channel = logChannel;
+                reached = recordedBytes;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException ignored) {
+                // Log was rotated, which forces it before closing.
+            }
+            forcedBytes = reached;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (logMonitor) {
+            try {
+                logChannel.force(false);
+                logChannel.close();
+            } catch (IOException e) {
+                logError("Unexpected error closing log file. " + e);
+            }
+        }
+    }
+
+    /**
+     * Fold log into a new snapshot.
+     */
+    private void compact() {
+        try {
+            // Swap logs at the point in time the snapshot represents.
+            byte[][] snapshotBytes = new byte[1][];
+            IOException[] rotateError = new IOException[1];
+            snapshotSource.snapshot(dataAsString -> {
+                snapshotBytes[0] = dataAsString.getBytes(StandardCharsets.UTF_8);
+                try {
+                    rotate(checksum(snapshotBytes[0]));
+                } catch (IOException e) {
+                    rotateError[0] = e;
+                }
+            });
+            if (rotateError[0] != null) {
+                throw rotateError[0];
+            }
+
+            // New active log applies to these bytes. Write them, then drop old log.
+            SnapshotFile.write(dataPath, snapshotBytes[0]);
+            Files.deleteIfExists(compactingLogPath);
+        } catch (IOException e) {
+            logError("Unexpected error compacting log file. " + e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Rename active log to compacting log and start new active log. Runs while writers are blocked.
+     *
+     * @param snapshotChecksum Checksum of snapshot new active log applies to.
+     * @throws IOException If logs could not be swapped.
+     */
+    private void rotate(long snapshotChecksum) throws IOException {
+        synchronized (logMonitor) {
+            logChannel.force(false);
+            logChannel.close();
+            if (Files.exists(compactingLogPath)) {
+                // Previous compaction failed before its snapshot was written. Keep its base and add active changes.
+                List<String> lines = Files.readAllLines(logPath);
+                try (var channel = FileChannel.open(compactingLogPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                        write(channel, (line + '\n').getBytes(StandardCharsets.UTF_8));
+                    }
+                    channel.force(false);
+                }
+                Files.delete(logPath);
+            } else {
+                Files.move(logPath, compactingLogPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            startLog(logPath, snapshotChecksum);
+            logChannel = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            unforced.set(false);
+        }
+    }
+
+    /**
+     * Create log file that applies to snapshot with checksum.
+     *
+     * @param path             Path of log file.
+     * @param snapshotChecksum Checksum of snapshot log applies to.
+     * @throws IOException If log file could not be created.
+     */
+    private void startLog(Path path, long snapshotChecksum) throws IOException {
+        JsonObject header = new JsonObject();
+        header.addProperty("base", snapshotChecksum);
+        try (var channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, (gson.toJson(header) + '\n').getBytes(StandardCharsets.UTF_8));
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Apply changes in log file to data.
+     *
+     * @param path             Path of log file.
+     * @param data             Data to apply changes to.
+     * @param snapshotChecksum Checksum of snapshot data was loaded from.
+     * @param force            Replay even if log does not apply to snapshot.
+     * @return true if log was replayed.
+     * @throws IOException If log file could not be read.
+     */
+    private boolean replay(Path path, JsonObject data, long snapshotChecksum, boolean force) throws IOException {
+        try (var reader = new BufferedReader(new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8))) {
+            // Check log applies to snapshot.
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                return false;
+            }
+            try {
+                JsonObject header = gson.fromJson(headerLine, JsonObject.class);
+                if (!force && (header == null || !header.has("base") || header.get("base").getAsLong() != snapshotChecksum)) {
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                return false;
+            }
+
+            // Apply changes. A partially written last line from a crash ends replay.
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject change;
+                try {
+                    change = gson.fromJson(line, JsonObject.class);
+                } catch (RuntimeException e) {
+                    logError("Ignoring unreadable log record in " + path + ". " + e);
+                    break;
+                }
+                if (change == null) {
+                    continue;
+                }
+                String[] keys = gson.fromJson(change.get("key"), String[].class);
+                if ("set".equals(change.get("op").getAsString())) {
+                    JsonTools.updateElement(keys, change.get("value"), data);
+                } else {
+                    JsonTools.removeElement(keys, data);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Force log to disk if there are unforced changes.
+     */
+    private void force() {
+        if (!unforced.getAndSet(false)) {
+            return;
+        }
+        synchronized (logMonitor) {
+            try {
+                logChannel.force(false);
+            } catch (IOException e) {
+                unforced.set(true);
+                logError("Unexpected error forcing log file. " + e);
+            }
+        }
+    }
+
+    private void logError(String message) {
+        if (logger != null) {
+            logger.error(message);
+        } else {
+            pendingErrors.add(message);
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        logBytesWritten.add(bytes.length);
+    }
+
+    private static long checksum(byte[] bytes) {
+        var crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
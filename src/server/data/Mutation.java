@@ -0,0 +1,59 @@
+package server.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+record Mutation(
+        Type type,
+        String[] keys,
+        JsonElement value
+) {
+    enum Type {
+        SET,
+        DELETE
+    }
+
+    static Mutation set(String[] keys, JsonElement value) {
+        return new Mutation(Type.SET, keys, value);
+    }
+
+    static Mutation delete(String[] keys) {
+        return new Mutation(Type.DELETE, keys, null);
+    }
+
+    /**
+     * Encode change as {"op":"set"|"delete","key":[...],"value":...}.
+     *
+     * @return Encoded change. Holds the value itself, so serialize it before the value can change.
+     */
+    JsonObject toJson() {
+        JsonObject change = new JsonObject();
+        change.addProperty("op", type == Type.SET ? "set" : "delete");
+        JsonArray key = new JsonArray();
+        for (String keyPart : keys) {
+            key.add(keyPart);
+        }
+        change.add("key", key);
+        if (type == Type.SET) {
+            change.add("value", value);
+        }
+        return change;
+    }
+
+    /**
+     * Decode change encoded by toJson.
+     *
+     * @param change Encoded change.
+     * @return Change.
+     * @throws RuntimeException If change is malformed.
+     */
+    static Mutation fromJson(JsonObject change) {
+        JsonArray key = change.getAsJsonArray("key");
+        String[] keys = new String[key.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key.get(i).getAsString();
+        }
+        return "set".equals(change.get("op").getAsString()) ? set(keys, change.get("value")) : delete(keys);
+    }
+}
@@ -0,0 +1,176 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import server.util.DaemonThreadFactory;
+import server.util.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+
+/*
+ * Keeps data in partition files (see Partitions) and rewrites only the partitions whose keys
+ * changed. The top-level keys of each partition are tracked, so writing a partition reads only
+ * its own keys. If the partition directory has no files yet, the single data file is split into it.
+ */
+final class PartitionedPersistence implements Persistence {
+    private final Path dataPath;
+    private final Path directory;
+    private final int partitionCount;
+    private final int loadThreads;
+    private final DataHandler.FlushPolicy flushPolicy;
+    private final long flushIntervalMillis;
+    private final Function<Set<String>, String> snapshotSource;
+
+    // Top-level keys of each partition. May hold keys since removed, which the snapshot source drops.
+    private final List<Set<String>> keys;
+    // 1 for each partition with changes not yet written.
+    private final AtomicIntegerArray dirty;
+    private final Object flushMonitor = new Object();
+    private ScheduledExecutorService flusher;
+
+    private Logger logger;
+
+    /**
+     * Create partitioned persistence.
+     *
+     * @param dataPath            Path of single data file. Partitions are kept in a "partitions" directory beside it.
+     * @param partitionCount      Number of partitions.
+     * @param loadThreads         Number of threads parsing partitions at load.
+     * @param flushPolicy         When partitions are written.
+     * @param flushIntervalMillis Time between background writes with flush policy INTERVAL.
+     * @param snapshotSource      Serializes the top-level keys of a partition, removing keys no longer in data.
+     */
+    PartitionedPersistence(Path dataPath, int partitionCount, int loadThreads, DataHandler.FlushPolicy flushPolicy,
+                           long flushIntervalMillis, Function<Set<String>, String> snapshotSource) {
+        this.dataPath = dataPath;
+        this.directory = dataPath.resolveSibling("partitions");
+        this.partitionCount = Math.max(1, partitionCount);
+        this.loadThreads = Math.max(1, loadThreads);
+        this.flushPolicy = flushPolicy;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.snapshotSource = snapshotSource;
+        this.keys = new ArrayList<>(this.partitionCount);
+        for (int i = 0; i < this.partitionCount; i++) {
+            this.keys.add(new ConcurrentSkipListSet<>());
+        }
+        this.dirty = new AtomicIntegerArray(this.partitionCount);
+    }
+
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public JsonObject load() throws IOException {
+        List<Path> files = Partitions.list(directory);
+        JsonObject data;
+        if (files.isEmpty()) {
+            // Start from single data file, which is left in place.
+            data = Files.exists(dataPath) ? SnapshotFile.parse(SnapshotFile.read(dataPath), new Gson()) : new JsonObject();
+            Partitions.write(directory, data, partitionCount);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(loadThreads);
+            try {
+                data = Partitions.read(files, pool);
+            } finally {
+                pool.shutdown();
+            }
+
+            // Move keys to their partitions if the number of partitions changed.
+            if (!Partitions.matches(files, partitionCount)) {
+                Partitions.write(directory, data, partitionCount);
+            }
+        }
+
+        data.keySet().forEach(key -> keys.get(Partitions.partition(key, partitionCount)).add(key));
+
+        // Start background flushing of changes if requested.
+        if (flushPolicy == DataHandler.FlushPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("data-flusher"));
+            flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return data;
+    }
+
+    @Override
+    public void record(List<Mutation> mutations) {
+        // Add key before marking partition, so a flush that finds the mark finds the key.
+        mutations.forEach(mutation -> {
+            int partition = Partitions.partition(mutation.keys()[0], partitionCount);
+            keys.get(partition).add(mutation.keys()[0]);
+            dirty.set(partition, 1);
+        });
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (flushPolicy == DataHandler.FlushPolicy.ALWAYS) {
+            writeDirty();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(flushIntervalMillis * 2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Write partitions with unflushed changes, logging any error.
+     */
+    private void flush() {
+        try {
+            writeDirty();
+        } catch (IOException e) {
+            if (logger != null) {
+                logger.error("Unexpected error flushing partition. " + e);
+            }
+        }
+    }
+
+    /**
+     * Write partitions with unflushed changes. A partition is cleared before it is serialized, so
+     * a caller finding it clear after waiting for the monitor knows its changes were written.
+     *
+     * @throws IOException If a partition could not be written. It is written again on next flush.
+     */
+    private void writeDirty() throws IOException {
+        synchronized (flushMonitor) {
+            for (int i = 0; i < partitionCount; i++) {
+                if (dirty.getAndSet(i, 0) == 0) {
+                    continue;
+                }
+                String partitionAsString = snapshotSource.apply(keys.get(i));
+                try {
+                    SnapshotFile.write(Partitions.path(directory, i, partitionCount),
+                            partitionAsString.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    dirty.set(i, 1);
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Partitioned data file layout: a directory holding one JSON data file per hash bucket of
+ * top-level keys, named "part-<partition>-of-<count>.json". Each file is an object holding the
+ * top-level keys of its partition. The partition of a key depends only on the key and the number
+ * of partitions, so files written with another number of partitions are recognized by name.
+ */
+public final class Partitions {
+    private static final Pattern FILE_NAME = Pattern.compile("part-(\\d+)-of-(\\d+)\\.json");
+
+    private Partitions() {
+    }
+
+    /**
+     * Get partition of top-level key.
+     *
+     * @param key   Top-level key.
+     * @param count Number of partitions.
+     * @return Partition number.
+     */
+    static int partition(String key, int count) {
+        return Math.floorMod(key.hashCode(), count);
+    }
+
+    /**
+     * Get path of partition file.
+     *
+     * @param directory Partition directory.
+     * @param partition Partition number.
+     * @param count     Number of partitions.
+     * @return Path of partition file.
+     */
+    static Path path(Path directory, int partition, int count) {
+        return directory.resolve("part-" + partition + "-of-" + count + ".json");
+    }
+
+    /**
+     * List partition files in directory.
+     *
+     * @param directory Partition directory.
+     * @return Partition files, or an empty list if directory does not exist.
+     * @throws IOException If directory could not be listed.
+     */
+    static List<Path> list(Path directory) throws IOException {
+        if (Files.notExists(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> FILE_NAME.matcher(file.getFileName().toString()).matches()).toList();
+        }
+    }
+
+    /**
+     * Check whether partition files were written with a number of partitions.
+     *
+     * @param files Partition files.
+     * @param count Number of partitions.
+     * @return true if every file belongs to a layout with count partitions.
+     */
+    static boolean matches(List<Path> files, int count) {
+        for (Path file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+            if (!matcher.matches() || Integer.parseInt(matcher.group(2)) != count) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read and parse partition files in parallel.
+     *
+     * @param files Partition files.
+     * @param pool  Pool to parse files on.
+     * @return Data held in all files.
+     * @throws IOException If a file could not be read.
+     */
+    static JsonObject read(List<Path> files, ForkJoinPool pool) throws IOException {
+        Gson gson = new Gson();
+        List<JsonObject> parts;
+        try {
+            parts = pool.submit(() -> files.parallelStream().map(file -> {
+                try {
+                    return SnapshotFile.parse(SnapshotFile.read(file), gson);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toList()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading partitions.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException cause) {
+                throw cause.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        }
+
+        JsonObject data = new JsonObject();
+        parts.forEach(part -> part.entrySet().forEach(entry -> data.add(entry.getKey(), entry.getValue())));
+        return data;
+    }
+
+    /**
+     * Write data as partition files, replacing every partition file in directory.
+     *
+     * @param directory Partition directory.
+     * @param data      Data to write.
+     * @param count     Number of partitions.
+     * @throws IOException If a file could not be written.
+     */
+    static void write(Path directory, JsonObject data, int count) throws IOException {
+        Gson gson = new Gson();
+        List<JsonObject> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            parts.add(new JsonObject());
+        }
+        data.entrySet().forEach(entry -> parts.get(partition(entry.getKey(), count)).add(entry.getKey(), entry.getValue()));
+
+        // Write new layout before removing files of an old one.
+        List<Path> oldFiles = list(directory);
+        Files.createDirectories(directory);
+        List<Path> newFiles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Path path = path(directory, i, count);
+            SnapshotFile.write(path, gson.toJson(parts.get(i)).getBytes(StandardCharsets.UTF_8));
+            newFiles.add(path);
+        }
+        for (Path oldFile : oldFiles) {
+            if (!newFiles.contains(oldFile)) {
+                Files.deleteIfExists(oldFile);
+            }
+        }
+    }
+
+    /**
+     * Split a single data file into partition files, or join partition files into a single data file.
+     *
+     * @param args "split" with path of data file, partition directory and number of partitions,
+     *             or "join" with partition directory and path of data file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 4 && args[0].equals("split")) {
+            JsonObject data = SnapshotFile.parse(SnapshotFile.read(Paths.get(args[1])), new Gson());
+            write(Paths.get(args[2]), data, Integer.parseInt(args[3]));
+        } else if (args.length == 3 && args[0].equals("join")) {
+            JsonObject data = read(list(Paths.get(args[1])), ForkJoinPool.commonPool());
+            SnapshotFile.write(Paths.get(args[2]), new Gson().toJson(data).getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println("Usage: java server.data.Partitions split <data file> <directory> <count>");
+            System.out.println("       java server.data.Partitions join <directory> <data file>");
+        }
+    }
+}
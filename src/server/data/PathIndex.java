@@ -0,0 +1,139 @@
+package server.data;
+
+import com.google.gson.JsonElement;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Index from full key path to element, so hot nested paths resolve with one hash lookup instead
+ * of one JsonObject.get per key. Paths are added the first time they are looked up and removed
+ * when a change replaces or removes them or anything above them.
+ *
+ * Lookups only read the hash map. Each lock stripe also keeps its paths in key order, so a
+ * change can find and remove all paths below the changed element. Adding and removing paths of
+ * a stripe is serialized on that ordered set. A path is only added if no change to its stripe
+ * was indexed since the caller started walking the tree, so a reader without a lock (copy on
+ * write) never adds an element that a change has already replaced.
+ */
+final class PathIndex {
+    private final PathLocks locks;
+    private final Map<KeyPath, JsonElement> elements = new ConcurrentHashMap<>();
+    private final TreeSet<KeyPath>[] stripePaths;
+    private final AtomicLongArray stripeVersions;
+    private final int stripeCapacity;
+
+    /**
+     * Create index.
+     *
+     * @param locks    Locks guarding data. Paths are grouped by their lock stripe.
+     * @param capacity Most paths held. 0 disables index.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PathIndex(PathLocks locks, int capacity) {
+        this.locks = locks;
+        int stripeCount = locks.stripeCount();
+        stripePaths = new TreeSet[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripePaths[i] = new TreeSet<>();
+        }
+        stripeVersions = new AtomicLongArray(stripeCount);
+        stripeCapacity = capacity <= 0 ? 0 : Math.max(1, capacity / stripeCount);
+    }
+
+    /**
+     * Get indexed element.
+     *
+     * @param keys Key(s) of element.
+     * @return Element, or null if path is not indexed.
+     */
+    JsonElement get(String[] keys) {
+        return stripeCapacity == 0 ? null : elements.get(new KeyPath(keys));
+    }
+
+    /**
+     * Get version of stripe holding key(s). Read before walking the tree for an element to add.
+     *
+     * @param keys Key(s) of element.
+     * @return Version to pass to put.
+     */
+    long version(String[] keys) {
+        return stripeVersions.get(locks.stripe(keys));
+    }
+
+    /**
+     * Add element found by walking the tree. Skipped if a change was indexed since version was read.
+     *
+     * @param keys    Key(s) of element.
+     * @param element Element found.
+     * @param version Stripe version read before walking the tree.
+     */
+    void put(String[] keys, JsonElement element, long version) {
+        if (stripeCapacity == 0) {
+            return;
+        }
+        int stripe = locks.stripe(keys);
+        TreeSet<KeyPath> paths = stripePaths[stripe];
+        synchronized (paths) {
+            if (stripeVersions.get(stripe) != version) {
+                return;
+            }
+
+            // Start over when stripe is full. Paths still in use come back on their next lookup.
+            if (paths.size() >= stripeCapacity) {
+                paths.forEach(elements::remove);
+                paths.clear();
+            }
+
+            KeyPath path = new KeyPath(keys.clone());
+            paths.add(path);
+            elements.put(path, element);
+        }
+    }
+
+    /**
+     * Remove element with key(s) and all elements below it. Call after the change is visible to
+     * readers, while still holding write lock of key(s) stripe.
+     *
+     * @param keys      Key(s) of changed element.
+     * @param ancestors Whether elements above changed element were replaced too, as with copy on write.
+     */
+    void invalidate(String[] keys, boolean ancestors) {
+        if (stripeCapacity == 0) {
+            return;
+        }
+        int stripe = locks.stripe(keys);
+        TreeSet<KeyPath> paths = stripePaths[stripe];
+        synchronized (paths) {
+            stripeVersions.incrementAndGet(stripe);
+            if (paths.isEmpty()) {
+                return;
+            }
+
+            // Paths below changed element follow it in key order.
+            KeyPath changed = new KeyPath(keys);
+            Iterator<KeyPath> below = paths.tailSet(changed, true).iterator();
+            while (below.hasNext()) {
+                KeyPath path = below.next();
+                if (!path.startsWith(changed)) {
+                    break;
+                }
+                elements.remove(path);
+                below.remove();
+            }
+
+            if (ancestors) {
+                for (int length = 2; length < keys.length; length++) {
+                    KeyPath ancestor = new KeyPath(Arrays.copyOf(keys, length));
+                    if (paths.remove(ancestor)) {
+                        elements.remove(ancestor);
+                    }
+                }
+            }
+        }
+    }
+}
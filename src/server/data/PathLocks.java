@@ -0,0 +1,149 @@
+package server.data;
+
+import server.util.LatencyRecorder;
+import server.util.Metrics;
+import server.util.RequestTrace;
+
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Read/write locks striped by top-level key. Every change touches exactly one top-level
+ * subtree, so requests on different top-level keys usually use different stripes and run in
+ * parallel. Requests needing several stripes take them in ascending order to avoid deadlock.
+ */
+final class PathLocks {
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+
+    // Waits for stripes that were held or had waiters. Free stripes are taken without reading the clock.
+    private final boolean timed = Metrics.getInstance().enabled();
+    private final boolean traced = RequestTrace.enabled();
+    private final LatencyRecorder readWaits = Metrics.getInstance().latency("lockWait.read");
+    private final LatencyRecorder writeWaits = Metrics.getInstance().latency("lockWait.write");
+
+    /**
+     * Create locks.
+     *
+     * @param stripeCount Number of stripes. Rounded up to a power of two.
+     */
+    PathLocks(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock(true);
+        }
+        mask = stripes.length - 1;
+    }
+
+    int stripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Get stripe guarding key(s).
+     *
+     * @param keys Key(s) of element.
+     * @return Stripe number.
+     */
+    int stripe(String[] keys) {
+        int hash = keys[0].hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Get distinct stripes guarding elements, in locking order.
+     *
+     * @param keyLists Key(s) of each element.
+     * @return Stripe numbers in ascending order.
+     */
+    int[] stripes(List<String[]> keyLists) {
+        return keyLists.stream()
+                .mapToInt(this::stripe)
+                .distinct()
+                .sorted()
+                .toArray();
+    }
+
+    void lockRead(int stripe) {
+        lockRead(stripes[stripe]);
+    }
+
+    void unlockRead(int stripe) {
+        stripes[stripe].readLock().unlock();
+    }
+
+    void lockRead(int[] stripeNumbers) {
+        for (int stripe : stripeNumbers) {
+            lockRead(stripes[stripe]);
+        }
+    }
+
+    void unlockRead(int[] stripeNumbers) {
+        for (int i = stripeNumbers.length - 1; i >= 0; i--) {
+            stripes[stripeNumbers[i]].readLock().unlock();
+        }
+    }
+
+    void lockWrite(int[] stripeNumbers) {
+        for (int stripe : stripeNumbers) {
+            ReentrantReadWriteLock lock = stripes[stripe];
+            lock(lock.writeLock(), (timed || traced) && (lock.isWriteLocked() || lock.getReadLockCount() > 0 || lock.hasQueuedThreads()),
+                    writeWaits);
+        }
+    }
+
+    void unlockWrite(int[] stripeNumbers) {
+        for (int i = stripeNumbers.length - 1; i >= 0; i--) {
+            stripes[stripeNumbers[i]].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Block all writers, for example to take a consistent snapshot.
+     */
+    void lockAllRead() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.readLock().lock();
+        }
+    }
+
+    void unlockAllRead() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].readLock().unlock();
+        }
+    }
+
+    private void lockRead(ReentrantReadWriteLock lock) {
+        lock(lock.readLock(), (timed || traced) && (lock.isWriteLocked() || lock.hasQueuedThreads()), readWaits);
+    }
+
+    /**
+     * Take lock, recording how long it took if it looked busy. Busy locks are spotted by a racy
+     * check, which is good enough for statistics and the slow log.
+     *
+     * @param lock  Lock to take.
+     * @param busy  Whether lock looked held by a conflicting thread or had waiters.
+     * @param waits Histogram of waits.
+     */
+    private void lock(Lock lock, boolean busy, LatencyRecorder waits) {
+        if (!busy) {
+            lock.lock();
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        long nanos = System.nanoTime() - start;
+        if (timed) {
+            waits.record(nanos);
+        }
+        RequestTrace trace = RequestTrace.current();
+        if (trace != null) {
+            trace.add(RequestTrace.Phase.LOCK_WAIT, nanos);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package server.data;
+
+import com.google.gson.JsonObject;
+import server.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+interface Persistence {
+    enum Type {
+        // Rewrite whole data file.
+        SNAPSHOT,
+        // Append changes to a log and fold log into data file in the background.
+        LOG,
+        // Rewrite whole data file in binary format. Top-level elements are read from the
+        // memory-mapped data file when first used.
+        BINARY,
+        // Keep top-level keys in one data file per hash bucket and rewrite only changed buckets.
+        PARTITIONED
+    }
+
+    /**
+     * Serializes a consistent copy of in memory data.
+     */
+    interface SnapshotSource {
+        /**
+         * Serialize a consistent copy of data.
+         *
+         * @param whileBlocked Action run with serialized data before changes are allowed again,
+         *                     or null if there is none.
+         * @return Serialized data.
+         */
+        String snapshot(Consumer<String> whileBlocked);
+
+        /**
+         * Serialize a consistent copy of data.
+         *
+         * @return Serialized data.
+         */
+        default String snapshot() {
+            return snapshot(null);
+        }
+    }
+
+    /**
+     * Set logger.
+     *
+     * @param logger Logger to use.
+     */
+    void setLogger(Logger logger);
+
+    /**
+     * Load stored data.
+     *
+     * @return Stored data.
+     * @throws IOException If stored data could not be read.
+     */
+    JsonObject load() throws IOException;
+
+    /**
+     * Get memory-mapped data file holding the top-level elements that load did not return.
+     *
+     * @return Mapped data file in binary format, or null if load returned all data.
+     */
+    default ByteBuffer mappedData() {
+        return null;
+    }
+
+    /**
+     * Record changes already applied to in memory data. Called while holding the write locks
+     * of the changed keys, so changes to a key are recorded in the order they were applied.
+     * Must not wait for data locks.
+     *
+     * @param mutations Changes to record.
+     * @throws IOException If changes could not be recorded.
+     */
+    void record(List<Mutation> mutations) throws IOException;
+
+    /**
+     * Make recorded changes durable as required by flush policy. Called after data locks are
+     * released, before changes are acknowledged. Concurrent callers may share one write.
+     *
+     * @throws IOException If changes could not be made durable.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Write outstanding changes and release resources.
+     */
+    void close();
+}
@@ -0,0 +1,173 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import server.util.DaemonThreadFactory;
+import server.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * Follows a primary (see ReplicationPrimary), applying its changes in order. Reconnects after a
+ * second if the connection is lost, continuing after the last change applied.
+ */
+final class ReplicationFollower {
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int MAX_BATCH = 256;
+
+    private final String host;
+    private final int port;
+    private final Consumer<List<Mutation>> changeApplier;
+    private final Consumer<JsonObject> snapshotApplier;
+    private final Gson gson = new Gson();
+
+    // Position in the primary's stream. Written only by the follower thread.
+    private volatile long run;
+    private volatile long appliedSequence = -1;
+    private volatile long appliedTime;
+    private volatile long primarySequence = -1;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    private Logger logger;
+
+    /**
+     * Create follower.
+     *
+     * @param primary         Host and replication port of primary, as "host:port".
+     * @param changeApplier   Applies changes from primary, in order.
+     * @param snapshotApplier Replaces all data with a snapshot from primary.
+     */
+    ReplicationFollower(String primary, Consumer<List<Mutation>> changeApplier, Consumer<JsonObject> snapshotApplier) {
+        int colon = primary.lastIndexOf(':');
+        this.host = colon < 0 ? "127.0.0.1" : primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1).trim());
+        this.changeApplier = changeApplier;
+        this.snapshotApplier = snapshotApplier;
+    }
+
+    void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Start following primary on a background thread.
+     */
+    void start() {
+        new DaemonThreadFactory("replication-follower").newThread(this::follow).start();
+    }
+
+    /**
+     * Get replication state.
+     *
+     * @return Object with role, connection state, sequence numbers and lag.
+     */
+    JsonObject status() {
+        long applied = appliedSequence;
+        long latest = primarySequence;
+        JsonObject status = new JsonObject();
+        status.addProperty("role", "follower");
+        status.addProperty("primary", host + ":" + port);
+        status.addProperty("connected", connected);
+        status.addProperty("appliedSequence", applied);
+        status.addProperty("primarySequence", latest);
+        status.addProperty("lagChanges", Math.max(0, latest - applied));
+        status.addProperty("lagMillis", applied >= latest ? 0 : Math.max(0, System.currentTimeMillis() - appliedTime));
+        return status;
+    }
+
+    /**
+     * Stop following primary.
+     */
+    void close() {
+        closed = true;
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Connect to primary and apply its changes until closed.
+     */
+    private void follow() {
+        while (!closed) {
+            try (var socket = new Socket()) {
+                this.socket = socket;
+                socket.connect(new InetSocketAddress(host, port));
+                socket.setTcpNoDelay(true);
+                var inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                var outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                ReplicationPrimary.writeMessage(outputStream, "{\"run\":" + run + ",\"sequence\":" + appliedSequence + "}");
+                outputStream.flush();
+                connected = true;
+                logInfo("Following primary " + host + ":" + port + ".");
+
+                List<Mutation> changes = new ArrayList<>();
+                while (!closed) {
+                    // Apply changes that have arrived together as one batch.
+                    long lastSequence = -1;
+                    long lastTime = 0;
+                    do {
+                        JsonObject message = gson.fromJson(ReplicationPrimary.readMessage(inputStream), JsonObject.class);
+                        long sequence = message.get("sequence").getAsLong();
+                        long time = message.get("time").getAsLong();
+                        if (message.has("snapshot")) {
+                            // Snapshot already holds any change received before it.
+                            changes.clear();
+                            snapshotApplier.accept(message.getAsJsonObject("snapshot"));
+                            run = message.get("run").getAsLong();
+                            appliedSequence = sequence;
+                            appliedTime = time;
+                            primarySequence = sequence;
+                        } else if (message.has("op")) {
+                            changes.add(Mutation.fromJson(message));
+                            lastSequence = sequence;
+                            lastTime = time;
+                        }
+                        primarySequence = Math.max(primarySequence, sequence);
+                    } while (inputStream.available() > 0 && changes.size() < MAX_BATCH);
+
+                    if (!changes.isEmpty()) {
+                        changeApplier.accept(changes);
+                        appliedSequence = lastSequence;
+                        appliedTime = lastTime;
+                        changes.clear();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    logInfo("Lost primary " + host + ":" + port + ". " + e);
+                }
+            } finally {
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void logInfo(String message) {
+        if (logger != null) {
+            logger.info(message);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import server.util.DaemonThreadFactory;
+import server.util.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Streams changes to followers. Changes get consecutive sequence numbers in the order they are
+ * recorded, and the latest ones are kept in a bounded backlog. A follower connects to the
+ * replication port and sends the run and sequence number of the last change it applied. It
+ * then receives every later change, preceded by a full snapshot if it followed another run of
+ * the primary or those changes have left the backlog. Each message is a 4 byte big-endian
+ * length followed by UTF-8 JSON:
+ *
+ *   follower: {"run":<run>,"sequence":<last applied>}
+ *   primary:  {"run":<run>,"sequence":<n>,"time":<millis>,"snapshot":{...}}
+ *             {"sequence":<n>,"time":<millis>,"op":"set","key":[...],"value":...}
+ *             {"sequence":<n>,"time":<millis>}   Heartbeat, sent once a second while idle.
+ *
+ * Times are primary clock milliseconds when the change was recorded, so followers can report lag.
+ */
+final class ReplicationPrimary {
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    private final int port;
+    private final Persistence.SnapshotSource snapshotSource;
+    private final Gson gson = new Gson();
+
+    // Identifies this run, since sequence numbers start over when the primary restarts.
+    private final long run = ThreadLocalRandom.current().nextLong();
+
+    // Encoded changes by sequence number modulo capacity. Guarded by this.
+    private final String[] backlog;
+    private long lastSequence;
+
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    private Logger logger;
+
+    /**
+     * Create primary.
+     *
+     * @param port            Port followers connect to.
+     * @param backlogCapacity Most recent changes kept for followers catching up.
+     * @param snapshotSource  Serializes a consistent copy of data.
+     */
+    ReplicationPrimary(int port, int backlogCapacity, Persistence.SnapshotSource snapshotSource) {
+        this.port = port;
+        this.backlog = new String[Math.max(1, backlogCapacity)];
+        this.snapshotSource = snapshotSource;
+    }
+
+    void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Start accepting followers.
+     *
+     * @throws IOException If replication port could not be bound.
+     */
+    void start() throws IOException {
+        var server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        serverSocket = server;
+        new DaemonThreadFactory("replication-accept").newThread(this::accept).start();
+    }
+
+    /**
+     * Add changes to the stream. Called while holding the write locks of the changed keys, so
+     * changes to a key get sequence numbers in the order they were applied.
+     *
+     * @param mutations Changes applied.
+     */
+    void publish(List<Mutation> mutations) {
+        long time = System.currentTimeMillis();
+        synchronized (this) {
+            for (Mutation mutation : mutations) {
+                long sequence = ++lastSequence;
+                JsonObject change = new JsonObject();
+                change.addProperty("sequence", sequence);
+                change.addProperty("time", time);
+                mutation.toJson().entrySet().forEach(entry -> change.add(entry.getKey(), entry.getValue()));
+                backlog[(int) (sequence % backlog.length)] = gson.toJson(change);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get replication state.
+     *
+     * @return Object with role, last sequence number and number of connected followers.
+     */
+    JsonObject status() {
+        JsonObject status = new JsonObject();
+        status.addProperty("role", "primary");
+        synchronized (this) {
+            status.addProperty("sequence", lastSequence);
+        }
+        status.addProperty("followers", followers.size());
+        return status;
+    }
+
+    /**
+     * Stop accepting followers and disconnect them.
+     */
+    void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+        }
+        followers.forEach(follower -> {
+            try {
+                follower.close();
+            } catch (IOException ignored) {
+            }
+        });
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Accept followers until closed, streaming to each on its own thread.
+     */
+    private void accept() {
+        var senders = new DaemonThreadFactory("replication-sender");
+        while (!closed) {
+            try {
+                Socket follower = serverSocket.accept();
+                senders.newThread(() -> stream(follower)).start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logError("Unexpected error accepting follower. " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream changes to a follower until it disconnects.
+     *
+     * @param follower Connection to follower.
+     */
+    private void stream(Socket follower) {
+        followers.add(follower);
+        try (follower;
+             var inputStream = new DataInputStream(new BufferedInputStream(follower.getInputStream()));
+             var outputStream = new DataOutputStream(new BufferedOutputStream(follower.getOutputStream()))) {
+            follower.setTcpNoDelay(true);
+            JsonObject hello = gson.fromJson(readMessage(inputStream), JsonObject.class);
+            long next = hello.get("run").getAsLong() == run ? hello.get("sequence").getAsLong() + 1 : -1;
+
+            List<String> messages = new ArrayList<>();
+            while (!closed) {
+                synchronized (this) {
+                    // Wait for changes, sending a heartbeat now and then.
+                    if (next > lastSequence && next >= 0) {
+                        wait(HEARTBEAT_MILLIS);
+                    }
+                    if (next < 0 || next > lastSequence + 1 || next <= lastSequence - backlog.length) {
+                        // Changes follower needs are not in the backlog.
+                        next = -1;
+                    } else if (next > lastSequence) {
+                        messages.add("{\"sequence\":" + lastSequence + ",\"time\":" + System.currentTimeMillis() + "}");
+                    } else {
+                        for (; next <= lastSequence; next++) {
+                            messages.add(backlog[(int) (next % backlog.length)]);
+                        }
+                    }
+                }
+
+                // Start follower over from a snapshot. Changes recorded later are in the backlog.
+                if (next < 0) {
+                    long[] snapshotSequence = new long[1];
+                    String snapshot = snapshotSource.snapshot(serialized -> {
+                        synchronized (this) {
+                            snapshotSequence[0] = lastSequence;
+                        }
+                    });
+                    messages.add("{\"run\":" + run + ",\"sequence\":" + snapshotSequence[0]
+                            + ",\"time\":" + System.currentTimeMillis() + ",\"snapshot\":" + snapshot + "}");
+                    next = snapshotSequence[0] + 1;
+                }
+
+                for (String message : messages) {
+                    writeMessage(outputStream, message);
+                }
+                outputStream.flush();
+                messages.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                logError("Follower " + follower.getRemoteSocketAddress() + " disconnected. " + e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower);
+        }
+    }
+
+    /**
+     * Read a length-prefixed message.
+     *
+     * @param inputStream Stream to read from.
+     * @return Message.
+     * @throws IOException If message could not be read.
+     */
+    static String readMessage(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a length-prefixed message.
+     *
+     * @param outputStream Stream to write to.
+     * @param message      Message to write.
+     * @throws IOException If message could not be written.
+     */
+    static void writeMessage(DataOutputStream outputStream, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private void logError(String message) {
+        if (logger != null) {
+            logger.error(message);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package server.data;
+
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Cache of serialized get values by key path, so repeated gets skip walking the tree and
+ * serializing. Split into one least recently used segment per lock stripe, so every path below
+ * a top-level key shares a segment with that key and a change clears its path, the paths above
+ * it and the paths below it within one segment.
+ *
+ * A value is only added if no change to its segment was seen since the caller started reading,
+ * so a reader without a lock (copy on write) never adds a value that a change has replaced.
+ */
+final class ResponseCache {
+    private final PathLocks locks;
+    private final Segment[] segments;
+    private final int maxChars;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create cache.
+     *
+     * @param locks    Locks guarding data. Paths are grouped by their lock stripe.
+     * @param capacity Most values held. 0 disables cache.
+     * @param maxChars Longest value held.
+     */
+    ResponseCache(PathLocks locks, int capacity, int maxChars) {
+        this.locks = locks;
+        int stripeCount = locks.stripeCount();
+        int segmentCapacity = capacity <= 0 ? 0 : Math.max(1, capacity / stripeCount);
+        segments = new Segment[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Get cached value.
+     *
+     * @param keys Key(s) of element.
+     * @return Serialized value, or null if not cached.
+     */
+    String get(String[] keys) {
+        Segment segment = segments[locks.stripe(keys)];
+        if (segment.capacity == 0) {
+            return null;
+        }
+        String value;
+        synchronized (segment) {
+            value = segment.values.get(new KeyPath(keys));
+        }
+        (value == null ? misses : hits).increment();
+        return value;
+    }
+
+    /**
+     * Get version of segment holding key(s). Read before reading the element to add.
+     *
+     * @param keys Key(s) of element.
+     * @return Version to pass to put.
+     */
+    long version(String[] keys) {
+        Segment segment = segments[locks.stripe(keys)];
+        synchronized (segment) {
+            return segment.version;
+        }
+    }
+
+    /**
+     * Add serialized value. Skipped if a change was seen since version was read.
+     *
+     * @param keys    Key(s) of element.
+     * @param value   Serialized value.
+     * @param version Segment version read before reading the element.
+     */
+    void put(String[] keys, String value, long version) {
+        Segment segment = segments[locks.stripe(keys)];
+        if (segment.capacity == 0 || value.length() > maxChars) {
+            return;
+        }
+        synchronized (segment) {
+            if (segment.version != version) {
+                return;
+            }
+            KeyPath path = new KeyPath(keys.clone());
+            segment.values.put(path, value);
+            segment.paths.add(path);
+
+            // Evict least recently used values.
+            Iterator<KeyPath> eldest = segment.values.keySet().iterator();
+            while (segment.values.size() > segment.capacity) {
+                segment.paths.remove(eldest.next());
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove values of changed element, the elements above it and the elements below it. Call
+     * after the change is visible to readers.
+     *
+     * @param keys Key(s) of changed element.
+     */
+    void invalidate(String[] keys) {
+        Segment segment = segments[locks.stripe(keys)];
+        synchronized (segment) {
+            segment.version++;
+            if (segment.paths.isEmpty()) {
+                return;
+            }
+
+            for (int length = 1; length < keys.length; length++) {
+                KeyPath ancestor = new KeyPath(Arrays.copyOf(keys, length));
+                if (segment.paths.remove(ancestor)) {
+                    segment.values.remove(ancestor);
+                }
+            }
+
+            // Paths below changed element follow it in key order.
+            KeyPath changed = new KeyPath(keys);
+            Iterator<KeyPath> below = segment.paths.tailSet(changed, true).iterator();
+            while (below.hasNext()) {
+                KeyPath path = below.next();
+                if (!path.startsWith(changed)) {
+                    break;
+                }
+                segment.values.remove(path);
+                below.remove();
+            }
+        }
+    }
+
+    /**
+     * Get cache counters.
+     *
+     * @return Object with "hits", "misses", "evictions" and "size".
+     */
+    JsonObject stats() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.values.size();
+            }
+        }
+        JsonObject stats = new JsonObject();
+        stats.addProperty("hits", hits.sum());
+        stats.addProperty("misses", misses.sum());
+        stats.addProperty("evictions", evictions.sum());
+        stats.addProperty("size", size);
+        return stats;
+    }
+
+    /*
+     * Values of one lock stripe in access order, with their paths in key order. Guarded by itself.
+     */
+    private static final class Segment {
+        final int capacity;
+        final LinkedHashMap<KeyPath, String> values = new LinkedHashMap<>(16, 0.75f, true);
+        final TreeSet<KeyPath> paths = new TreeSet<>();
+        long version;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package server.data;
+
+import com.google.gson.JsonObject;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/*
+ * Sorted child keys of nested objects, for scans. JsonObject keeps keys in insertion order, so
+ * the first scan of an object copies its keys into a skip list and later scans only seek into
+ * it. Changes then add or remove single keys instead of rebuilding it.
+ *
+ * Keys of an object are only read while holding a lock of its stripe and only changed while
+ * holding the write lock, so a change never races with a scan of the same object.
+ */
+final class ScanIndex {
+    private final ConcurrentNavigableMap<KeyPath, NavigableSet<String>> childKeys = new ConcurrentSkipListMap<>();
+    private final int capacity;
+
+    /**
+     * Create index.
+     *
+     * @param capacity Most objects whose keys are held.
+     */
+    ScanIndex(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Get sorted keys of object. Must be called while holding lock of key(s) stripe.
+     *
+     * @param keys       Key(s) of object.
+     * @param jsonObject Object at key(s).
+     * @return Sorted keys.
+     */
+    NavigableSet<String> childKeys(String[] keys, JsonObject jsonObject) {
+        KeyPath path = new KeyPath(keys.clone());
+        NavigableSet<String> sortedKeys = childKeys.get(path);
+        if (sortedKeys != null) {
+            return sortedKeys;
+        }
+
+        // Start over when full. Objects still being scanned come back on their next scan.
+        if (childKeys.size() >= capacity) {
+            childKeys.clear();
+        }
+        return childKeys.computeIfAbsent(path, absent -> new ConcurrentSkipListSet<>(jsonObject.keySet()));
+    }
+
+    /**
+     * Update keys after a change. Must be called while holding write lock of key(s) stripe.
+     *
+     * @param keys    Key(s) of changed element.
+     * @param removed Whether element was removed rather than set.
+     */
+    void changed(String[] keys, boolean removed) {
+        if (childKeys.isEmpty()) {
+            return;
+        }
+
+        // Add or remove key in parent.
+        if (keys.length > 1) {
+            String[] parentKeys = new String[keys.length - 1];
+            System.arraycopy(keys, 0, parentKeys, 0, parentKeys.length);
+            NavigableSet<String> parentChildKeys = childKeys.get(new KeyPath(parentKeys));
+            if (parentChildKeys != null) {
+                if (removed) {
+                    parentChildKeys.remove(keys[keys.length - 1]);
+                } else {
+                    parentChildKeys.add(keys[keys.length - 1]);
+                }
+            }
+        }
+
+        // Forget element and everything below it, since it was replaced.
+        KeyPath changed = new KeyPath(keys);
+        Iterator<KeyPath> below = childKeys.tailMap(changed, true).keySet().iterator();
+        while (below.hasNext()) {
+            if (!below.next().startsWith(changed)) {
+                break;
+            }
+            below.remove();
+        }
+    }
+}
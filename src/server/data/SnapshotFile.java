@@ -0,0 +1,186 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import server.util.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+final class SnapshotFile {
+    private static final LongAdder bytesRead = Metrics.getInstance().counter("dataFile.bytesRead");
+    private static final LongAdder bytesWritten = Metrics.getInstance().counter("dataFile.bytesWritten");
+    private static final LongAdder writes = Metrics.getInstance().counter("dataFile.writes");
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Read snapshot file, creating an empty one if not present. Compressed files are decompressed.
+     *
+     * @param path Path of snapshot file.
+     * @return Snapshot file contents.
+     * @throws IOException If snapshot file could not be read.
+     */
+    static byte[] read(Path path) throws IOException {
+        if (Files.notExists(path)) {
+            write(path, "{}".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        bytesRead.add(bytes.length);
+        return Compression.decompress(bytes);
+    }
+
+    /**
+     * Parse snapshot file contents.
+     *
+     * @param bytes Snapshot file contents.
+     * @param gson  Gson instance to parse with.
+     * @return Data held in snapshot. Returns an empty JsonObject if snapshot is empty.
+     * @throws com.google.gson.JsonParseException If snapshot is not valid JSON.
+     */
+    static JsonObject parse(byte[] bytes, Gson gson) {
+        JsonElement element = gson.fromJson(new String(bytes, StandardCharsets.UTF_8), JsonElement.class);
+        if (element == null || !element.isJsonObject()) {
+            return new JsonObject();
+        }
+        return (JsonObject) element;
+    }
+
+    /**
+     * Map binary snapshot file into memory, creating an empty one if not present.
+     *
+     * @param path Path of snapshot file.
+     * @return Read-only snapshot file contents.
+     * @throws IOException              If snapshot file could not be mapped.
+     * @throws IllegalArgumentException If snapshot file is not in binary format.
+     */
+    static ByteBuffer map(Path path) throws IOException {
+        if (Files.notExists(path)) {
+            writeUncompressed(path, BinaryFormat.encode(new JsonObject()));
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            BinaryFormat.checkMagic(buffer);
+            return buffer;
+        }
+    }
+
+    /**
+     * Find generations of a binary snapshot file. A mapped file cannot be replaced on every
+     * platform, so each rewrite goes to a new file. Generation 0 is the path itself, and
+     * generation n is the path with "." and n appended.
+     *
+     * @param path Path of snapshot file.
+     * @return Paths of generations present, by generation.
+     * @throws IOException If directory of snapshot file could not be listed.
+     */
+    static NavigableMap<Long, Path> generations(Path path) throws IOException {
+        NavigableMap<Long, Path> generations = new TreeMap<>();
+        if (Files.exists(path)) {
+            generations.put(0L, path);
+        }
+        String prefix = path.getFileName() + ".";
+        Path directory = path.toAbsolutePath().getParent();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                String suffix = name.startsWith(prefix) ? name.substring(prefix.length()) : "";
+                if (!suffix.isEmpty() && suffix.length() < 19 && suffix.chars().allMatch(Character::isDigit)) {
+                    generations.put(Long.parseLong(suffix), file);
+                }
+            });
+        }
+        return generations;
+    }
+
+    /**
+     * Find newest generation of a binary snapshot file.
+     *
+     * @param path Path of snapshot file.
+     * @return Newest generation, or path itself if there is none.
+     * @throws IOException If directory of snapshot file could not be listed.
+     */
+    static Path latestGeneration(Path path) throws IOException {
+        NavigableMap<Long, Path> generations = generations(path);
+        return generations.isEmpty() ? path : generations.lastEntry().getValue();
+    }
+
+    /**
+     * Get path of a generation of a binary snapshot file.
+     *
+     * @param path       Path of snapshot file.
+     * @param generation Generation.
+     * @return Path of generation.
+     */
+    static Path generationPath(Path path, long generation) {
+        return generation == 0 ? path : path.resolveSibling(path.getFileName() + "." + generation);
+    }
+
+    /**
+     * Delete generations of a binary snapshot file except one. A generation that cannot be
+     * deleted, for example because it is still mapped on Windows, is left for a later call.
+     *
+     * @param path Path of snapshot file.
+     * @param keep Generation to keep.
+     * @throws IOException If directory of snapshot file could not be listed.
+     */
+    static void deleteGenerations(Path path, Path keep) throws IOException {
+        for (Path generation : generations(path).values()) {
+            if (!generation.equals(keep)) {
+                try {
+                    Files.deleteIfExists(generation);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace snapshot file, compressing it if compression is enabled.
+     *
+     * @param path  Path of snapshot file.
+     * @param bytes Snapshot file contents.
+     * @throws IOException If snapshot file could not be written.
+     */
+    static void write(Path path, byte[] bytes) throws IOException {
+        writeUncompressed(path, Compression.compress(bytes));
+    }
+
+    /**
+     * Replace snapshot file as is. A temporary file is written, forced to disk and then moved
+     * into place so a failed write does not leave a truncated snapshot behind.
+     *
+     * @param path  Path of snapshot file.
+     * @param bytes Snapshot file contents.
+     * @throws IOException If snapshot file could not be written.
+     */
+    static void writeUncompressed(Path path, byte[] bytes) throws IOException {
+        Path temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(temporaryPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytesWritten.add(bytes.length);
+        writes.increment();
+    }
+}
@@ -0,0 +1,174 @@
+package server.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import server.util.DaemonThreadFactory;
+import server.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+final class SnapshotPersistence implements Persistence {
+    private final Path dataPath;
+    private final DataHandler.FlushPolicy flushPolicy;
+    private final long flushIntervalMillis;
+    private final boolean binary;
+    private final Supplier<byte[]> snapshotSource;
+    private final Gson gson = new Gson();
+    private ByteBuffer mappedData;
+
+    // Binary data file generation last written. Guarded by flushMonitor after load.
+    private long generation;
+
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final Object flushMonitor = new Object();
+    private ScheduledExecutorService flusher;
+
+    // Changes recorded, and how many of them are known to be in data file, when flush policy is ALWAYS.
+    private final AtomicLong recordedSequence = new AtomicLong();
+    private long writtenSequence;
+
+    private Logger logger;
+
+    /**
+     * Create snapshot persistence.
+     *
+     * @param dataPath            Path of data file.
+     * @param flushPolicy         When data file is written.
+     * @param flushIntervalMillis Time between background writes with flush policy INTERVAL.
+     * @param binary              Whether data file is in binary format rather than JSON.
+     * @param snapshotSource      Serializes a consistent copy of data in the data file format.
+     */
+    SnapshotPersistence(Path dataPath, DataHandler.FlushPolicy flushPolicy, long flushIntervalMillis, boolean binary,
+                        Supplier<byte[]> snapshotSource) {
+        this.dataPath = dataPath;
+        this.flushPolicy = flushPolicy;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.binary = binary;
+        this.snapshotSource = snapshotSource;
+    }
+
+    @Override
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public JsonObject load() throws IOException {
+        // Binary data is read from the mapped file when used, so nothing is loaded up front.
+        JsonObject data;
+        if (binary) {
+            var generations = SnapshotFile.generations(dataPath);
+            generation = generations.isEmpty() ? 0 : generations.lastKey();
+            Path latest = SnapshotFile.generationPath(dataPath, generation);
+            mappedData = SnapshotFile.map(latest);
+            SnapshotFile.deleteGenerations(dataPath, latest);
+            data = new JsonObject();
+        } else {
+            data = SnapshotFile.parse(SnapshotFile.read(dataPath), gson);
+        }
+
+        // Start background flushing of changes if requested.
+        if (flushPolicy == DataHandler.FlushPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("data-flusher"));
+            flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return data;
+    }
+
+    @Override
+    public ByteBuffer mappedData() {
+        return mappedData;
+    }
+
+    @Override
+    public void record(List<Mutation> mutations) {
+        if (flushPolicy != DataHandler.FlushPolicy.ALWAYS) {
+            dirty.set(true);
+            return;
+        }
+        recordedSequence.incrementAndGet();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (flushPolicy != DataHandler.FlushPolicy.ALWAYS) {
+            return;
+        }
+
+        // A snapshot taken now covers every change recorded so far, so one write serves all waiting callers.
+        long target = recordedSequence.get();
+        synchronized (flushMonitor) {
+            if (writtenSequence >= target) {
+                return;
+            }
+            long sequence = recordedSequence.get();
+            writeDataFile(snapshotSource.get());
+            writtenSequence = sequence;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(flushIntervalMillis * 2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Replace data file. Binary data files are not compressed, since they are mapped into memory.
+     * They are written as a new generation instead of over the mapped file, and older generations
+     * are deleted once they are no longer needed.
+     *
+     * @param bytes Data file contents.
+     * @throws IOException If data file could not be written.
+     */
+    private void writeDataFile(byte[] bytes) throws IOException {
+        if (binary) {
+            Path next = SnapshotFile.generationPath(dataPath, generation + 1);
+            SnapshotFile.writeUncompressed(next, bytes);
+            generation++;
+            SnapshotFile.deleteGenerations(dataPath, next);
+        } else {
+            SnapshotFile.write(dataPath, bytes);
+        }
+    }
+
+    /**
+     * Write data to data file if there are unflushed changes.
+     */
+    private void flush() {
+        synchronized (flushMonitor) {
+            if (!dirty.getAndSet(false)) {
+                return;
+            }
+
+            // Writers wait only for serialization, not for disk.
+            byte[] snapshot = snapshotSource.get();
+            try {
+                writeDataFile(snapshot);
+            } catch (IOException e) {
+                // Try again on next flush.
+                dirty.set(true);
+                if (logger != null) {
+                    logger.error("Unexpected error flushing data file. " + e);
+                }
+            }
+        }
+    }
+}
@@ -3,13 +3,20 @@ package server.util;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.Optional;
 
 public final class JsonTools {
     private static Logger logger;
+    private static final Gson prettyGson = new GsonBuilder()
+            .setPrettyPrinting()
+            .create();
+    private static final int logJsonMaxChars = Settings.getInt("logJsonMaxChars", 4096);
 
     /**
      * Set logger.
@@ -21,16 +28,81 @@ public final class JsonTools {
     }
 
     /**
-     * Log JsonObject in pretty print style.
+     * Log JsonElement in pretty print style. Nothing is serialized unless debug messages are
+     * recorded, and output is cut off after "jsondb.logJsonMaxChars" characters.
      *
-     * @param jsonObject JsonObject to log.
+     * @param jsonElement JsonElement to log.
      */
-    public static void logJson(JsonObject jsonObject) {
-        Gson gson = new GsonBuilder()
-                .setPrettyPrinting()
-                .create();
+    public static void logJson(JsonElement jsonElement) {
+        logger.debug(() -> summarize(jsonElement, logJsonMaxChars));
+    }
 
-        logger.debug(gson.toJson(jsonObject));
+    /**
+     * Serialize JsonElement in pretty print style, stopping once output reaches a limit.
+     *
+     * @param jsonElement JsonElement to serialize.
+     * @param maxChars    Most characters to serialize.
+     * @return Serialized JsonElement, cut off with a note if it was too long.
+     */
+    public static String summarize(JsonElement jsonElement, int maxChars) {
+        BoundedWriter writer = new BoundedWriter(maxChars);
+        try {
+            prettyGson.toJson(jsonElement, writer);
+        } catch (JsonIOException e) {
+            if (!(e.getCause() instanceof LimitReachedException)) {
+                throw e;
+            }
+            writer.text.append("... (cut off after ").append(maxChars).append(" characters)");
+        }
+        return writer.text.toString();
+    }
+
+    /*
+     * Writer that keeps the first characters written and then stops the serializer by
+     * throwing, so the rest of a large element is never visited.
+     */
+    private static final class BoundedWriter extends Writer {
+        private final StringBuilder text = new StringBuilder();
+        private final int maxChars;
+
+        private BoundedWriter(int maxChars) {
+            this.maxChars = maxChars;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            int room = maxChars - text.length();
+            text.append(buffer, offset, Math.min(room, length));
+            if (length > room) {
+                throw new LimitReachedException();
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            int room = maxChars - text.length();
+            text.append(string, offset, offset + Math.min(room, length));
+            if (length > room) {
+                throw new LimitReachedException();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class LimitReachedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
     }
 
     /**
@@ -148,4 +220,71 @@ public final class JsonTools {
 
         return null;
     }
+
+    /**
+     * Check that location of element with key(s) exists and is a JsonObject.
+     *
+     * @param keys       Key(s) of element.
+     * @param jsonObject JsonObject to search.
+     * @return null if location can hold element. Otherwise, returns a string describing problem.
+     */
+    public static String checkElementLocation(String[] keys, JsonObject jsonObject) {
+        if (keys.length == 1) {
+            return null;
+        }
+
+        Optional<JsonElement> elementLocationOptional = findElement(Arrays.copyOfRange(keys, 0, keys.length - 1), jsonObject);
+        if (elementLocationOptional.isEmpty()) {
+            return "Element location not found.";
+        }
+        if (!elementLocationOptional.get().isJsonObject()) {
+            return "Element location is not a JsonObject.";
+        }
+        return null;
+    }
+
+    /**
+     * Copy JsonObject with element at key(s) set to value. Only JsonObjects along the key path are
+     * copied. Everything else is shared with the original, which is left unchanged. Location of
+     * element must exist (see checkElementLocation).
+     *
+     * @param keys       Key(s) of element to update.
+     * @param value      Value to set for element.
+     * @param jsonObject JsonObject to copy.
+     * @return Updated copy of JsonObject.
+     */
+    public static JsonObject copyWithElement(String[] keys, JsonElement value, JsonObject jsonObject) {
+        return copyAlongPath(keys, 0, value, jsonObject);
+    }
+
+    /**
+     * Copy JsonObject without element at key(s). Only JsonObjects along the key path are copied.
+     * Everything else is shared with the original, which is left unchanged. Element must exist.
+     *
+     * @param keys       Key(s) of element to remove.
+     * @param jsonObject JsonObject to copy.
+     * @return Copy of JsonObject without element.
+     */
+    public static JsonObject copyWithoutElement(String[] keys, JsonObject jsonObject) {
+        return copyAlongPath(keys, 0, null, jsonObject);
+    }
+
+    private static JsonObject copyAlongPath(String[] keys, int keyIndex, JsonElement value, JsonObject jsonObject) {
+        JsonObject copy = new JsonObject();
+        jsonObject.entrySet().forEach(entry -> copy.add(entry.getKey(), entry.getValue()));
+
+        String key = keys[keyIndex];
+        if (keyIndex == keys.length - 1) {
+            // Replace or remove element. Same ordering as updateElement.
+            copy.remove(key);
+            if (value != null) {
+                copy.add(key, value);
+            }
+        } else {
+            // Replace child with its copy, keeping its position.
+            copy.add(key, copyAlongPath(keys, keyIndex + 1, value, (JsonObject) jsonObject.get(key)));
+        }
+
+        return copy;
+    }
 }
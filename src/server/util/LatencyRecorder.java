@@ -0,0 +1,109 @@
+package server.util;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Concurrent latency histogram. Each power of two range of nanoseconds is split into 16 equal
+ * buckets, so percentiles are off by under 6.3%. Buckets are LongAdders, so threads recording
+ * at once do not contend on one counter. A snapshot taken while latencies are being recorded
+ * may miss the latest of them.
+ */
+public final class LatencyRecorder {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Latencies above about 18 minutes are counted in the last bucket.
+    private static final int MAX_MAGNITUDE = 40 - SUB_BUCKET_BITS + 1;
+
+    private final LongAdder[] buckets = new LongAdder[SUB_BUCKETS + MAX_MAGNITUDE * SUB_BUCKETS / 2];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LatencyRecorder() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos Latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Summarize latencies in microseconds, optionally starting over.
+     *
+     * @param reset Whether to clear recorded latencies.
+     * @return Object with "count", "mean", "p50", "p90", "p99", "p99.9" and "max".
+     */
+    JsonObject snapshot(boolean reset) {
+        long[] counts = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = reset ? buckets[i].sumThenReset() : buckets[i].sum();
+            count += counts[i];
+        }
+        long total = reset ? sum.sumThenReset() : sum.sum();
+        long highest = reset ? max.getThenReset() : max.get();
+
+        JsonObject summary = new JsonObject();
+        summary.addProperty("count", count);
+        summary.addProperty("mean", count == 0 ? 0 : micros(total / count));
+        summary.addProperty("p50", micros(percentile(counts, count, highest, 50)));
+        summary.addProperty("p90", micros(percentile(counts, count, highest, 90)));
+        summary.addProperty("p99", micros(percentile(counts, count, highest, 99)));
+        summary.addProperty("p99.9", micros(percentile(counts, count, highest, 99.9)));
+        summary.addProperty("max", micros(highest));
+        return summary;
+    }
+
+    private static long percentile(long[] counts, long count, long highest, double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest, highestValue(i));
+            }
+        }
+        return highest;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if (magnitude > MAX_MAGNITUDE) {
+            return SUB_BUCKETS + MAX_MAGNITUDE * SUB_BUCKETS / 2 - 1;
+        }
+        int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS / 2;
+        return SUB_BUCKETS + (magnitude - 1) * SUB_BUCKETS / 2 + subBucket;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = (bucket - SUB_BUCKETS) / (SUB_BUCKETS / 2) + 1;
+        long subBucket = (bucket - SUB_BUCKETS) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+}
@@ -0,0 +1,91 @@
+package server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue for many producers and a single consumer. Each slot carries a
+ * sequence number: a producer claims a slot by advancing the tail with compareAndSet, stores its
+ * element and then publishes the slot by bumping its sequence, so the consumer never sees a
+ * half-written slot and producers never wait on a lock.
+ */
+final class LogRing<T> {
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final int mask;
+
+    // Only touched by the consumer thread.
+    private long head;
+
+    /**
+     * Create ring.
+     *
+     * @param capacity Most elements held. Rounded up to a power of two.
+     */
+    LogRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Add element without waiting. Safe to call from any thread.
+     *
+     * @param element Element to add.
+     * @return false if ring is full.
+     */
+    boolean offer(T element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove oldest element. Must only be called from the consumer thread.
+     *
+     * @return Oldest element, or null if ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        T element = (T) elements[index];
+        elements[index] = null;
+        sequences.set(index, head + elements.length);
+        head++;
+        return element;
+    }
+
+    /**
+     * Check whether ring is empty. Must only be called from the consumer thread.
+     *
+     * @return true if there is nothing to poll.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -1,14 +1,22 @@
 package server.util;
 
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 import java.util.logging.*;
 
 public final class Logger {
     private final java.util.logging.Logger julLogger;
-    private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 
     public enum Severity {
         DEBUG,
@@ -16,9 +24,56 @@ public final class Logger {
         ERROR
     }
 
+    /**
+     * What an asynchronous logger does when its buffer is full.
+     */
+    public enum FullPolicy {
+        // Wait for the writer thread to make room.
+        BLOCK,
+        // Discard the message. The number of discarded messages is logged later.
+        DROP
+    }
+
+    private record LogEvent(
+            long millis,
+            long threadId,
+            Level level,
+            String message,
+            boolean console
+    ) {
+    }
+
+    // Messages waiting for the writer thread, or null if messages are written by the calling thread.
+    private final LogRing<LogEvent> ring;
+    private final FullPolicy fullPolicy = Settings.getEnum("logFullPolicy", FullPolicy.BLOCK);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+
     public Logger(String className, String logFilePattern) {
         this.julLogger = java.util.logging.Logger.getLogger(className);
         this.julLogger.setUseParentHandlers(false);
+        this.julLogger.setLevel(switch (Settings.getEnum("logLevel", Severity.DEBUG)) {
+            case DEBUG -> Level.ALL;
+            case INFO -> Level.INFO;
+            case ERROR -> Level.SEVERE;
+        });
+
+        // Asynchronous mode writes the log file itself so it can flush once per batch.
+        if (Settings.getBoolean("asyncLog", false)) {
+            Writer fileWriter;
+            try {
+                fileWriter = Files.newBufferedWriter(Paths.get(resolvePattern(logFilePattern)), StandardCharsets.UTF_8);
+            } catch (IOException | SecurityException e) {
+                throw new RuntimeException("Unexpected error opening logging file. " + e);
+            }
+            this.ring = new LogRing<>(Settings.getInt("logBufferSize", 8192));
+            this.writer = new DaemonThreadFactory("log-writer").newThread(() -> drain(fileWriter));
+            this.writer.start();
+            return;
+        }
+
         Handler fileHandler;
         try {
             fileHandler = new FileHandler(logFilePattern);
@@ -27,7 +82,8 @@ public final class Logger {
             throw new RuntimeException("Unexpected error opening logging file. " + e);
         }
         this.julLogger.addHandler(fileHandler);
-        this.julLogger.setLevel(Level.ALL);
+        this.ring = null;
+        this.writer = null;
     }
 
     public void console(String message) {
@@ -35,35 +91,228 @@ public final class Logger {
     }
 
     public void console(String message, Severity severity) {
-        System.out.println(message);
-        switch (severity) {
-            case DEBUG -> debug(message);
-            case INFO -> info(message);
-            case ERROR -> error(message);
+        Level level = switch (severity) {
+            case DEBUG -> Level.FINE;
+            case INFO -> Level.INFO;
+            case ERROR -> Level.SEVERE;
+        };
+        if (ring != null) {
+            enqueue(level, message, true);
+            return;
         }
+
+        System.out.println(message);
+        julLogger.log(level, message);
     }
 
     public void debug(String message) {
-        julLogger.fine(message);
+        log(Level.FINE, message);
+    }
+
+    /**
+     * Log debug message built only if debug messages are recorded.
+     *
+     * @param message Supplier of message to log.
+     */
+    public void debug(Supplier<String> message) {
+        // Build message on calling thread, since it may read data that changes afterwards.
+        if (isDebugEnabled()) {
+            log(Level.FINE, message.get());
+        }
+    }
+
+    /**
+     * Check whether debug messages are recorded. Use to skip preparing expensive messages.
+     *
+     * @return true if debug messages are recorded.
+     */
+    public boolean isDebugEnabled() {
+        return julLogger.isLoggable(Level.FINE);
     }
 
     public void info(String message) {
-        julLogger.info(message);
+        log(Level.INFO, message);
     }
 
     public void error(String message) {
-        julLogger.severe(message);
+        log(Level.SEVERE, message);
+    }
+
+    /**
+     * Write messages still buffered and stop writer thread. Later messages are discarded.
+     */
+    public void close() {
+        if (ring == null || closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Log message to log file.
+     *
+     * @param level   Level of message.
+     * @param message Message to log.
+     */
+    private void log(Level level, String message) {
+        if (ring != null) {
+            if (julLogger.isLoggable(level)) {
+                enqueue(level, message, false);
+            }
+            return;
+        }
+
+        julLogger.log(level, message);
+    }
+
+    /**
+     * Hand message to writer thread.
+     *
+     * @param level   Level of message.
+     * @param message Message to log.
+     * @param console Whether to also print message to console.
+     */
+    private void enqueue(Level level, String message, boolean console) {
+        var event = new LogEvent(System.currentTimeMillis(), Thread.currentThread().getId(),
+                julLogger.isLoggable(level) ? level : null, message, console);
+        while (!ring.offer(event)) {
+            if (fullPolicy == FullPolicy.DROP || closed) {
+                dropped.incrementAndGet();
+                return;
+            }
+
+            // Let writer make room.
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(50_000);
+        }
+        if (writerWaiting) {
+            LockSupport.unpark(writer);
+        }
     }
 
-    private class MyFormatter extends Formatter {
+    /**
+     * Write buffered messages in batches until logger is closed. Runs on writer thread.
+     *
+     * @param fileWriter Writer for log file.
+     */
+    private void drain(Writer fileWriter) {
+        PrintStream console = System.out;
+        var formatter = new RecordFormatter();
+        var fileText = new StringBuilder();
+        var consoleText = new StringBuilder();
+        while (true) {
+            // Collect a batch of messages.
+            LogEvent event;
+            while ((event = ring.poll()) != null) {
+                if (event.console()) {
+                    consoleText.append(event.message()).append(System.lineSeparator());
+                }
+                if (event.level() != null) {
+                    formatter.format(event.millis(), event.level(), event.threadId(), event.message(), fileText);
+                }
+                if (fileText.length() + consoleText.length() >= 64 * 1024) {
+                    break;
+                }
+            }
+            long droppedCount = dropped.getAndSet(0);
+            if (droppedCount > 0) {
+                formatter.format(System.currentTimeMillis(), Level.WARNING, Thread.currentThread().getId(),
+                        droppedCount + " log messages dropped because log buffer was full.", fileText);
+            }
+
+            // Write batch with a single flush.
+            if (!consoleText.isEmpty()) {
+                console.print(consoleText);
+                console.flush();
+                consoleText.setLength(0);
+            }
+            if (!fileText.isEmpty()) {
+                try {
+                    fileWriter.append(fileText);
+                    fileWriter.flush();
+                } catch (IOException e) {
+                    console.println("Unexpected error writing logging file. " + e);
+                }
+                fileText.setLength(0);
+            }
+
+            // Wait for more messages.
+            if (ring.isEmpty()) {
+                if (closed) {
+                    break;
+                }
+                writerWaiting = true;
+                if (ring.isEmpty() && !closed) {
+                    LockSupport.parkNanos(100_000_000);
+                }
+                writerWaiting = false;
+            }
+        }
+
+        try {
+            fileWriter.close();
+        } catch (IOException e) {
+            console.println("Unexpected error closing logging file. " + e);
+        }
+    }
+
+    /**
+     * Replace "%h" and "%t" in a java.util.logging file pattern.
+     *
+     * @param pattern File pattern.
+     * @return File path.
+     */
+    static String resolvePattern(String pattern) {
+        return pattern
+                .replace("%h", System.getProperty("user.home"))
+                .replace("%t", System.getProperty("java.io.tmpdir"))
+                .replace("%%", "%");
+    }
+
+    /*
+     * Formats log lines into a caller's buffer. The date and time down to the second is only
+     * formatted again when the second changes. Not thread-safe, so each writer uses its own.
+     */
+    private static final class RecordFormatter {
+        private static final DateTimeFormatter SECONDS_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+        private final ZoneId zone = ZoneId.systemDefault();
+        private long cachedSecond = Long.MIN_VALUE;
+        private String cachedSecondText;
+
+        void format(long millis, Level level, long threadId, String message, StringBuilder text) {
+            long second = Math.floorDiv(millis, 1000);
+            if (second != cachedSecond) {
+                cachedSecond = second;
+                cachedSecondText = SECONDS_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), zone));
+            }
+            int fraction = Math.floorMod(millis, 1000);
+            text.append(cachedSecondText).append('.')
+                    .append((char) ('0' + fraction / 100))
+                    .append((char) ('0' + fraction / 10 % 10))
+                    .append((char) ('0' + fraction % 10))
+                    .append(' ').append(level.getName())
+                    .append(" [").append(threadId).append("] - ")
+                    .append(message).append('\n');
+        }
+    }
+
+    private static class MyFormatter extends Formatter {
+        // Synchronized since several threads may log through the same handler.
+        private final RecordFormatter recordFormatter = new RecordFormatter();
+        private final StringBuilder text = new StringBuilder();
+
         @Override
-        public String format(LogRecord record) {
-            return String.format("%s %s [%s] - %s\n",
-                    dateFormat.format(new Date(record.getMillis())),
-                    record.getLevel(),
-                    record.getLongThreadID(),
-                    record.getMessage()
-            );
+        public synchronized String format(LogRecord record) {
+            text.setLength(0);
+            recordFormatter.format(record.getMillis(), record.getLevel(), record.getLongThreadID(), record.getMessage(), text);
+            return text.toString();
         }
     }
 }
@@ -0,0 +1,99 @@
+package server.util;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Server counters, gauges and latency histograms, registered by dotted name. Callers look up
+ * what they update once and keep it, so recording is a LongAdder increment, or two clock reads
+ * and a few increments for a latency. Counters and latencies can be reset. Gauges count things
+ * currently in progress, such as open connections, and are never reset.
+ */
+public final class Metrics {
+    private static final Metrics instance = new Metrics();
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return instance;
+    }
+
+    private final boolean enabled = Settings.getBoolean("metrics", true);
+    private volatile long resetMillis = System.currentTimeMillis();
+
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyRecorder> latencies = new ConcurrentSkipListMap<>();
+
+    /**
+     * Check whether latencies should be measured. Counters and gauges are always kept.
+     *
+     * @return true unless jsondb.metrics is false.
+     */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Get counter, registering it on first use.
+     *
+     * @param name Dotted name.
+     * @return Counter.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    /**
+     * Get gauge, registering it on first use.
+     *
+     * @param name Dotted name.
+     * @return Gauge, incremented when something starts and decremented when it ends.
+     */
+    public LongAdder gauge(String name) {
+        return gauges.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    /**
+     * Get latency histogram, registering it on first use.
+     *
+     * @param name Dotted name.
+     * @return Latency histogram.
+     */
+    public LatencyRecorder latency(String name) {
+        return latencies.computeIfAbsent(name, ignored -> new LatencyRecorder());
+    }
+
+    /**
+     * Get all metrics, optionally starting counters and latencies over.
+     *
+     * @param reset Whether to reset counters and latencies after reading them.
+     * @return Object with "sinceMillis" (time covered), "counters", "gauges" and "latencyMicros" by name.
+     */
+    public JsonObject snapshot(boolean reset) {
+        long now = System.currentTimeMillis();
+        JsonObject snapshot = new JsonObject();
+        snapshot.addProperty("sinceMillis", now - resetMillis);
+
+        JsonObject countersAsJson = new JsonObject();
+        counters.forEach((name, counter) -> countersAsJson.addProperty(name, reset ? counter.sumThenReset() : counter.sum()));
+        snapshot.add("counters", countersAsJson);
+
+        JsonObject gaugesAsJson = new JsonObject();
+        gauges.forEach((name, gauge) -> gaugesAsJson.addProperty(name, gauge.sum()));
+        snapshot.add("gauges", gaugesAsJson);
+
+        JsonObject latenciesAsJson = new JsonObject();
+        latencies.forEach((name, latency) -> latenciesAsJson.add(name, latency.snapshot(reset)));
+        snapshot.add("latencyMicros", latenciesAsJson);
+
+        if (reset) {
+            resetMillis = now;
+        }
+        return snapshot;
+    }
+}
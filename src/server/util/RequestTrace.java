@@ -0,0 +1,129 @@
+package server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Time one request spent in each phase of its handling, kept by the thread handling it. Code
+ * along the way adds to the current trace only if there is one, so a request that was not
+ * sampled for the slow log costs a thread local lookup per phase, and nothing while the slow
+ * log is off. Time not covered by any phase, such as building the response, is reported as
+ * "other".
+ */
+public final class RequestTrace {
+    public enum Phase {
+        // Waiting for a thread after the connection was accepted or the request was received.
+        QUEUE("queue"),
+        // Receiving the request.
+        READ("read"),
+        // Parsing the request, including values to set.
+        PARSE("parse"),
+        // Waiting for lock stripes held by other requests.
+        LOCK_WAIT("lockWait"),
+        // Changing the tree, its indexes and caches.
+        MUTATE("mutate"),
+        // Recording and flushing changes to data files.
+        FILE_IO("fileIo"),
+        // Waiting for a group commit batch to be applied and written.
+        GROUP_COMMIT("groupCommit"),
+        // Serializing values.
+        SERIALIZE("serialize"),
+        // Logging the request and response.
+        LOG("log"),
+        // Writing the response to the socket.
+        WRITE("write");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    private static final ThreadLocal<RequestTrace> current = new ThreadLocal<>();
+    private static final AtomicLong nextId = new AtomicLong(1);
+    private static final SlowLog slowLog = SlowLog.getInstance();
+
+    private final long id = nextId.getAndIncrement();
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos;
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private RequestTrace(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Start tracing the request handled by the current thread, if the slow log is on and the
+     * request is sampled. Replaces any trace the thread left unfinished.
+     *
+     * @param startNanos System.nanoTime() when the connection was accepted or the request received.
+     * @return Trace, or null if request is not traced.
+     */
+    public static RequestTrace begin(long startNanos) {
+        if (!slowLog.enabled()) {
+            return null;
+        }
+        RequestTrace trace = slowLog.sampled() ? new RequestTrace(startNanos) : null;
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * Get trace of the request handled by the current thread.
+     *
+     * @return Trace, or null if request is not traced.
+     */
+    public static RequestTrace current() {
+        return slowLog.enabled() ? current.get() : null;
+    }
+
+    /**
+     * Check whether requests are traced at all, to stamp arriving requests only when needed.
+     *
+     * @return true if the slow log is on.
+     */
+    public static boolean enabled() {
+        return slowLog.enabled();
+    }
+
+    /**
+     * Add time spent in a phase. A phase may be added several times, such as once per change of a batch.
+     *
+     * @param phase Phase.
+     * @param nanos Time spent in nanoseconds.
+     */
+    public void add(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    /**
+     * Stop tracing and write request to the slow log if it took longer than the threshold.
+     *
+     * @param request Request text.
+     */
+    public void end(String request) {
+        if (current.get() == this) {
+            current.remove();
+        }
+        long totalNanos = System.nanoTime() - startNanos;
+        if (totalNanos >= slowLog.thresholdNanos()) {
+            slowLog.write(this, totalNanos, request);
+        }
+    }
+
+    long id() {
+        return id;
+    }
+
+    long startMillis() {
+        return startMillis;
+    }
+
+    long phaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+}
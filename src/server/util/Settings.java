@@ -0,0 +1,92 @@
+package server.util;
+
+public final class Settings {
+    private static final String PREFIX = "jsondb.";
+
+    private Settings() {
+    }
+
+    /**
+     * Get string setting.
+     *
+     * @param name         Name of setting (without "jsondb." prefix).
+     * @param defaultValue Value to use if setting is not present.
+     * @return Setting value.
+     */
+    public static String getString(String name, String defaultValue) {
+        return System.getProperty(PREFIX + name, defaultValue);
+    }
+
+    /**
+     * Get integer setting.
+     *
+     * @param name         Name of setting (without "jsondb." prefix).
+     * @param defaultValue Value to use if setting is not present or not a number.
+     * @return Setting value.
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get long setting.
+     *
+     * @param name         Name of setting (without "jsondb." prefix).
+     * @param defaultValue Value to use if setting is not present or not a number.
+     * @return Setting value.
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get boolean setting.
+     *
+     * @param name         Name of setting (without "jsondb." prefix).
+     * @param defaultValue Value to use if setting is not present.
+     * @return Setting value.
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Get enum setting. Names are matched ignoring case.
+     *
+     * @param name         Name of setting (without "jsondb." prefix).
+     * @param defaultValue Value to use if setting is not present or not recognized.
+     * @return Setting value.
+     */
+    public static <E extends Enum<E>> E getEnum(String name, E defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E option : defaultValue.getDeclaringClass().getEnumConstants()) {
+            if (option.name().equalsIgnoreCase(value.trim())) {
+                return option;
+            }
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,152 @@
+package server.util;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Log of requests that took longer than a threshold, one line of JSON per request with the
+ * time it spent in each phase. Only a sample of requests is traced, and at most a set number
+ * of entries is written per second, so the log can stay on under load. Entries over the limit
+ * are counted and the count is written with the next entry. The file is opened when the first
+ * slow request is written.
+ */
+public final class SlowLog {
+    private static final SlowLog instance = new SlowLog();
+
+    // Longest request text written with an entry.
+    private static final int MAX_REQUEST_CHARS = 1024;
+
+    private SlowLog() {
+    }
+
+    public static SlowLog getInstance() {
+        return instance;
+    }
+
+    private final long thresholdMillis = Settings.getLong("slowLogMillis", 100);
+    private final long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, thresholdMillis));
+    private final int sampleEvery = Math.max(1, Settings.getInt("slowLogSampleEvery", 1));
+    private final int maxPerSecond = Math.max(1, Settings.getInt("slowLogMaxPerSecond", 10));
+    private final String filePattern = Settings.getString("slowLogFile", "%h/json-database-slow.log");
+
+    private final LongAdder writtenCount = Metrics.getInstance().counter("slowLog.written");
+    private final LongAdder suppressedCount = Metrics.getInstance().counter("slowLog.suppressed");
+
+    private Logger logger;
+
+    /**
+     * Set logger.
+     *
+     * @param logger Logger to use.
+     */
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    // Guarded by this.
+    private Writer writer;
+    private boolean failed;
+    private long windowSecond;
+    private int windowCount;
+    private long suppressed;
+
+    /**
+     * Check whether slow requests are logged.
+     *
+     * @return false if jsondb.slowLogMillis is negative.
+     */
+    boolean enabled() {
+        return thresholdMillis >= 0;
+    }
+
+    /**
+     * Decide whether to trace a request.
+     *
+     * @return true for about one in jsondb.slowLogSampleEvery requests.
+     */
+    boolean sampled() {
+        return sampleEvery == 1 || ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+    }
+
+    long thresholdNanos() {
+        return thresholdNanos;
+    }
+
+    /**
+     * Write slow request, unless this second's entries were already written.
+     *
+     * @param trace      Phases of request.
+     * @param totalNanos Time from start of trace to its end.
+     * @param request    Request text.
+     */
+    synchronized void write(RequestTrace trace, long totalNanos, String request) {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != windowSecond) {
+            windowSecond = second;
+            windowCount = 0;
+        }
+        if (failed || windowCount == maxPerSecond) {
+            suppressed++;
+            suppressedCount.increment();
+            return;
+        }
+        windowCount++;
+
+        JsonObject entry = new JsonObject();
+        entry.addProperty("time", Instant.ofEpochMilli(trace.startMillis()).toString());
+        entry.addProperty("id", trace.id());
+        entry.addProperty("thread", Thread.currentThread().getName());
+        entry.addProperty("totalMicros", micros(totalNanos));
+
+        JsonObject phases = new JsonObject();
+        long covered = 0;
+        for (RequestTrace.Phase phase : RequestTrace.Phase.values()) {
+            long nanos = trace.phaseNanos(phase);
+            if (nanos > 0) {
+                phases.addProperty(phase.label(), micros(nanos));
+                covered += nanos;
+            }
+        }
+        phases.addProperty("other", micros(Math.max(0, totalNanos - covered)));
+        entry.add("phaseMicros", phases);
+
+        entry.addProperty("request", request.length() > MAX_REQUEST_CHARS
+                ? request.substring(0, MAX_REQUEST_CHARS) + "..."
+                : request);
+        if (suppressed > 0) {
+            entry.addProperty("suppressed", suppressed);
+            suppressed = 0;
+        }
+
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(Paths.get(Logger.resolvePattern(filePattern)), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(entry.toString());
+            writer.write('\n');
+            writer.flush();
+            writtenCount.increment();
+        } catch (IOException | SecurityException e) {
+            // Stop trying rather than fail requests. Later entries are counted as suppressed.
+            failed = true;
+            if (logger != null) {
+                logger.error("Unexpected error writing slow request log. " + e);
+            }
+        }
+    }
+
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+}